@@ -1,3 +1,6 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Arrays;
 
@@ -11,7 +14,7 @@ import java.util.Arrays;
  *         languages like JavaScript, C++ or Python.
  */
 public class Cli {
-	private static final String VERSION = "2.3.0";
+	private static final String VERSION = core.Interpreter.VERSION;
 	private static final String DESCRIPTION = "A command line interface tool for the RustScript language.";
 	private static final String COPYRIGHT = "Copyright (c) 2021 William Ragstad";
 	private static final String HELP = String.format("""
@@ -29,8 +32,32 @@ public class Cli {
 					Starts the REPL mode.
 				-l, --lint [files]
 					Lints the given files.
-				-c, --compile [files]          (Not implemented)
-					Compiles the given files.
+				-c, --compile [files]
+					Compiles the given files and their imports into a runnable
+					jar named after the first file. Run it with java -jar.
+				--save-image [image] [files]
+					Runs the given files in the same environment and saves its
+					state to the image file.
+				--image [image] [files]
+					Runs the given files, each starting from the state saved in
+					the image file.
+				-d, --daemon
+					Starts a daemon that keeps running scripts sent to it by
+					clients, without starting a new JVM for each of them.
+				--client [files]
+					Runs the given files in the daemon, with the input and
+					output of this process.
+				-j, --jobs [n] [files]
+					Runs n of the given files at the same time. The output of
+					each file is printed when it is done, in the order of the
+					files. Exits with status 1 if any file failed.
+				--prefix
+					With --jobs, prints output as it is written instead, with
+					each line prefixed by the name of its file.
+				--stream [files]
+					Runs the given files, evaluating each expression as soon as
+					it is parsed. Output starts right away and large generated
+					scripts are not held in memory as a whole.
 
 			Execute scripts: rsc [files]
 				Interprets the given script files one at a time.
@@ -51,7 +78,71 @@ public class Cli {
 			if (files.isEmpty()) {
 				System.out.println("No files given.");
 			} else {
-				Linter.run(files);
+				System.exit(Linter.run(files) > 0 ? 1 : 0);
+			}
+		} else if (options.contains("--compile") || options.contains("-c")) {
+			if (files.isEmpty()) {
+				System.out.println("No files given.");
+			} else {
+				Compiler.run(files);
+			}
+		} else if (options.contains("--daemon") || options.contains("-d")) {
+			try {
+				Daemon.serve(Daemon.getSocketPath());
+			} catch (Exception e) {
+				System.out.println(e.getMessage());
+			}
+		} else if (options.contains("--client")) {
+			if (files.isEmpty()) {
+				System.out.println("No files given.");
+				return;
+			}
+			try {
+				System.exit(Daemon.connect(Daemon.getSocketPath(), files));
+			} catch (IOException e) {
+				System.out.println("Could not connect to the daemon: " + e.getMessage());
+				System.exit(1);
+			}
+		} else if (options.contains("--jobs") || options.contains("-j")) {
+			int index = 0;
+			while (!args[index].equalsIgnoreCase("-j") && !args[index].equalsIgnoreCase("--jobs")) {
+				index++;
+			}
+			int jobs = 0;
+			try {
+				jobs = Integer.parseInt(args[index + 1]);
+			} catch (IndexOutOfBoundsException | NumberFormatException e) {
+				// Reported below
+			}
+			if (jobs < 1) {
+				System.out.println(String.format("Error: Expected a number of jobs after '%s'", args[index]));
+				System.exit(1);
+			}
+			ArrayList<String> jobFiles = new ArrayList<>();
+			for (int i = 0; i < args.length; i++) {
+				if (i != index + 1 && !args[i].startsWith("-")) {
+					jobFiles.add(args[i]);
+				}
+			}
+			if (jobFiles.isEmpty()) {
+				System.out.println("No files given.");
+				return;
+			}
+			System.exit(Runner.runParallel(jobFiles, Paths.get(System.getProperty("user.dir")), jobs,
+					options.contains("--prefix")));
+		} else if (options.contains("--stream")) {
+			if (files.isEmpty()) {
+				System.out.println("No files given.");
+			} else {
+				System.exit(Runner.runStream(files, Paths.get(System.getProperty("user.dir"))));
+			}
+		} else if (options.contains("--save-image") || options.contains("--image")) {
+			if (files.isEmpty()) {
+				System.out.println("No image file given.");
+			} else if (options.contains("--save-image")) {
+				Runner.saveImage(files.subList(1, files.size()), files.get(0));
+			} else {
+				System.exit(Runner.run(files.subList(1, files.size()), files.get(0)));
 			}
 		} else {
 			if (args.length > 0) {
@@ -61,12 +152,11 @@ public class Cli {
 					System.out.println(String.format("Error: Unknown options '%s'", String.join("', '", options)));
 				} else {
 					// All args are files
-					Runner.run(files);
+					System.exit(Runner.run(files));
 				}
 			} else {
 				System.out.println(HELP);
 			}
 		}
-		// TODO: Add linting and compilation
 	}
 }
@@ -0,0 +1,39 @@
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+import core.CompiledProgram;
+import core.ProgramCompiler;
+
+/**
+ * The Compiler takes a set of input source code files as command line
+ * argument, and compiles them together with their imports into a runnable jar
+ * named after the first file. Running the jar runs the files one at a time,
+ * like the Runner does, without parsing them again.
+ */
+public class Compiler {
+	public static void main(String[] args) {
+		if (args.length == 0) {
+			System.out.println("Usage: Compiler [file(s)]");
+			return;
+		}
+		run(Arrays.asList(args));
+	}
+
+	public static void run(List<String> files) {
+		Path currentDirectory = Paths.get(System.getProperty("user.dir"));
+		List<Path> filePaths = files.stream().map(currentDirectory::resolve).toList();
+		String fileName = filePaths.get(0).getFileName().toString();
+		int extension = fileName.lastIndexOf('.');
+		Path jarPath = currentDirectory.resolve((extension > 0 ? fileName.substring(0, extension) : fileName) + ".jar");
+		try {
+			CompiledProgram program = ProgramCompiler.compile(filePaths);
+			ProgramCompiler.writeJar(program, jarPath);
+			System.out.println(String.format("Compiled %d file(s) and %d import(s) to '%s'.", program.getFiles().size(),
+					program.getModules().size(), currentDirectory.relativize(jarPath)));
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+		}
+	}
+}
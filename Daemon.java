@@ -0,0 +1,343 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+import core.Interpreter;
+import core.util.RoutedInputStream;
+import core.util.RoutedPrintStream;
+import core.util.Threads;
+
+/**
+ * The Daemon keeps a warmed up JVM running scripts sent to it over a Unix
+ * domain socket, so that short scripts don't have to pay for starting a new
+ * JVM every time. Each request runs in an interpreter of its own, with the
+ * output and input of the client that sent it.
+ *
+ * <p>
+ * Messages are sent as frames of a type byte, a length and a payload. The
+ * client sends a request with its working directory and files, followed by its
+ * standard input. The daemon sends back the standard output and error of the
+ * scripts, ending with the exit status.
+ * </p>
+ *
+ * <p>
+ * The socket is kept in a directory only the current user can access, and
+ * both sides check that the socket belongs to the current user, so that
+ * another user cannot listen in its place. A client is still a JVM of its own,
+ * but running this class directly only loads the client and not the
+ * interpreter.
+ * </p>
+ */
+public class Daemon {
+	private static final byte REQUEST = 1, STDIN = 2, STDIN_EOF = 3, STDOUT = 4, STDERR = 5, EXIT = 6;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0) {
+			System.exit(connect(getSocketPath(), Arrays.asList(args)));
+		}
+		serve(getSocketPath());
+	}
+
+	/**
+	 * Get the socket path from the rsc.socket system property, or a socket in the
+	 * runtime directory of the current user. Without a runtime directory, the
+	 * socket is kept in a directory of the current user in the temporary
+	 * directory, which is created if needed and must not be accessible by anyone
+	 * else.
+	 *
+	 * @throws IOException If the directory of the socket is not private.
+	 */
+	public static Path getSocketPath() throws IOException {
+		String socket = System.getProperty("rsc.socket");
+		if (socket != null) {
+			return Paths.get(socket);
+		}
+		String runtimeDirectory = System.getenv("XDG_RUNTIME_DIR");
+		if (runtimeDirectory != null && !runtimeDirectory.isEmpty()) {
+			return Paths.get(runtimeDirectory, "rsc.sock");
+		}
+		Path directory = Paths.get(System.getProperty("java.io.tmpdir"), "rsc-" + System.getProperty("user.name"));
+		try {
+			Files.createDirectory(directory,
+					PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+		} catch (FileAlreadyExistsException e) {
+			// Made by an earlier daemon, or by someone else, which is checked below
+		}
+		checkOwner(directory);
+		Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(directory, LinkOption.NOFOLLOW_LINKS);
+		if (!PosixFilePermissions.toString(permissions).endsWith("------")) {
+			throw new IOException(String.format("%s can be accessed by other users", directory));
+		}
+		return directory.resolve("rsc.sock");
+	}
+
+	/**
+	 * Check that a file is owned by the current user.
+	 *
+	 * @throws IOException If it is owned by someone else.
+	 */
+	private static void checkOwner(Path path) throws IOException {
+		String owner = Files.getOwner(path, LinkOption.NOFOLLOW_LINKS).getName();
+		if (!owner.equals(System.getProperty("user.name"))) {
+			throw new IOException(String.format("%s is owned by %s, not by the current user", path, owner));
+		}
+	}
+
+	/**
+	 * Listen for requests until the process is stopped.
+	 *
+	 * @param socketPath The Unix domain socket to listen on.
+	 */
+	public static void serve(Path socketPath) throws Exception {
+		if (Files.exists(socketPath, LinkOption.NOFOLLOW_LINKS)) {
+			checkOwner(socketPath);
+			try {
+				SocketChannel.open(UnixDomainSocketAddress.of(socketPath)).close();
+				System.out.println("A daemon is already listening on " + socketPath);
+				return;
+			} catch (IOException e) {
+				Files.delete(socketPath); // Left behind by a daemon that was stopped
+			}
+		}
+		new Interpreter(); // Load the built-ins before the first request
+		RoutedPrintStream.install();
+		RoutedInputStream.install();
+		ExecutorService requests = Threads.newExecutor();
+		try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+			server.bind(UnixDomainSocketAddress.of(socketPath));
+			socketPath.toFile().deleteOnExit();
+			System.out.println("Listening on " + socketPath);
+			while (true) {
+				SocketChannel client = server.accept();
+				requests.execute(() -> handle(client));
+			}
+		}
+	}
+
+	private static void handle(SocketChannel client) {
+		try (client) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream(client)));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream(client)));
+			if (in.readByte() != REQUEST) {
+				return;
+			}
+			in.readInt(); // Length of the request
+			Path currentDirectory = Paths.get(in.readUTF());
+			ArrayList<String> files = new ArrayList<>();
+			for (int n = in.readInt(); n > 0; n--) {
+				files.add(in.readUTF());
+			}
+
+			// Forward the standard input of the client while the scripts run
+			PipedInputStream stdin = new PipedInputStream();
+			PipedOutputStream stdinWriter = new PipedOutputStream(stdin);
+			Thread stdinReader = new Thread(() -> {
+				try (stdinWriter) {
+					byte type;
+					while ((type = in.readByte()) == STDIN) {
+						byte[] data = new byte[in.readInt()];
+						in.readFully(data);
+						stdinWriter.write(data);
+						stdinWriter.flush();
+					}
+				} catch (IOException e) {
+					// The client disconnected or the scripts stopped reading
+				}
+			});
+			stdinReader.setDaemon(true);
+			stdinReader.start();
+
+			int status;
+			try {
+				((RoutedPrintStream) System.out).route(new FrameOutputStream(out, STDOUT));
+				((RoutedPrintStream) System.err).route(new FrameOutputStream(out, STDERR));
+				((RoutedInputStream) System.in).route(new FilterInputStream(stdin) {
+					public int read(byte[] b, int off, int len) throws IOException {
+						System.out.flush(); // Show prompts before waiting for input
+						return super.read(b, off, len);
+					}
+				});
+				status = Runner.run(files, currentDirectory);
+			} catch (Throwable e) {
+				// Report it to the client, the daemon keeps serving other requests
+				String message = "Internal error: " + e + System.lineSeparator();
+				new FrameOutputStream(out, STDERR).write(message.getBytes());
+				status = 1;
+			} finally {
+				System.out.flush();
+				System.err.flush();
+				((RoutedPrintStream) System.out).route(null);
+				((RoutedPrintStream) System.err).route(null);
+				((RoutedInputStream) System.in).route(null);
+				stdin.close(); // Stop forwarding input nobody will read
+			}
+			sendExit(out, status);
+		} catch (IOException e) {
+			// The client disconnected
+		}
+	}
+
+	private static void sendExit(DataOutputStream out, int status) throws IOException {
+		synchronized (out) {
+			out.writeByte(EXIT);
+			out.writeInt(4);
+			out.writeInt(status);
+			out.flush();
+		}
+	}
+
+	/**
+	 * Run files in the daemon, with the output and input of this process.
+	 *
+	 * @param socketPath The Unix domain socket the daemon listens on.
+	 * @param files      The script files to run.
+	 * @return The exit status of the scripts.
+	 * @throws IOException If no daemon is listening on the socket.
+	 */
+	public static int connect(Path socketPath, List<String> files) throws IOException {
+		if (Files.exists(socketPath, LinkOption.NOFOLLOW_LINKS)) {
+			checkOwner(socketPath);
+		}
+		try (SocketChannel daemon = SocketChannel.open(UnixDomainSocketAddress.of(socketPath))) {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream(daemon)));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outputStream(daemon)));
+			ByteArrayOutputStream request = new ByteArrayOutputStream();
+			DataOutputStream requestData = new DataOutputStream(request);
+			requestData.writeUTF(System.getProperty("user.dir"));
+			requestData.writeInt(files.size());
+			for (String file : files) {
+				requestData.writeUTF(file);
+			}
+			out.writeByte(REQUEST);
+			out.writeInt(request.size());
+			request.writeTo(out);
+			out.flush();
+
+			Thread stdinWriter = new Thread(() -> {
+				byte[] buffer = new byte[8192];
+				try {
+					int read;
+					while ((read = System.in.read(buffer)) != -1) {
+						synchronized (out) {
+							out.writeByte(STDIN);
+							out.writeInt(read);
+							out.write(buffer, 0, read);
+							out.flush();
+						}
+					}
+					synchronized (out) {
+						out.writeByte(STDIN_EOF);
+						out.writeInt(0);
+						out.flush();
+					}
+				} catch (IOException e) {
+					// The daemon closed the connection
+				}
+			});
+			stdinWriter.setDaemon(true);
+			stdinWriter.start();
+
+			while (true) {
+				byte type = in.readByte();
+				byte[] data = new byte[in.readInt()];
+				in.readFully(data);
+				if (type == STDOUT) {
+					System.out.write(data);
+					System.out.flush();
+				} else if (type == STDERR) {
+					System.err.write(data);
+					System.err.flush();
+				} else if (type == EXIT) {
+					return ByteBuffer.wrap(data).getInt();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends everything written to it right away as a frame of the given type, so
+	 * that the client sees output as soon as it is printed, also without a
+	 * newline.
+	 */
+	private static class FrameOutputStream extends OutputStream {
+		private final DataOutputStream out;
+		private final byte type;
+
+		private FrameOutputStream(DataOutputStream out, byte type) {
+			this.out = out;
+			this.type = type;
+		}
+
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return;
+			}
+			synchronized (out) {
+				out.writeByte(type);
+				out.writeInt(len);
+				out.write(b, off, len);
+				out.flush();
+			}
+		}
+	}
+
+	// Streams reading and writing the channel directly, as the streams of
+	// java.nio.channels.Channels block writing while another thread is reading.
+
+	private static InputStream inputStream(SocketChannel channel) {
+		return new InputStream() {
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+			}
+
+			public int read(byte[] b, int off, int len) throws IOException {
+				return channel.read(ByteBuffer.wrap(b, off, len));
+			}
+		};
+	}
+
+	private static OutputStream outputStream(SocketChannel channel) {
+		return new OutputStream() {
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException {
+				ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+			}
+		};
+	}
+}
@@ -1,12 +1,18 @@
-import java.io.File;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
-import core.Parser;
+import core.LintCache;
+import core.util.FileHelper;
+import core.util.RoutedPrintStream;
 
 public class Linter {
     public static void main(String[] args) throws Exception {
@@ -17,36 +23,50 @@ public class Linter {
         run(Arrays.asList(args));
     }
 
-    public static void run(List<String> files) {
+	/**
+	 * The outcome of linting one file, with the message to report or null if the
+	 * file passed.
+	 */
+	private static class Result {
+		private final String file;
+		private String message;
+
+		private Result(String file) {
+			this.file = file;
+		}
+	}
+
+	/**
+	 * Lint the files at the same time on the fork-join pool. Every file is
+	 * linted, even if some of them are missing, and the results are reported
+	 * sorted by file name.
+	 *
+	 * @param files The files to lint.
+	 * @return The number of files that failed.
+	 */
+    public static int run(List<String> files) {
         System.out.println("Linting " + files.size() + " file(s)...");
-        int failed = 0;
+		long start = System.nanoTime();
+		ArrayList<Result> results = new ArrayList<>();
+		ArrayList<RecursiveAction> tasks = new ArrayList<>();
 		for (String file : files) {
-			File f = new File(file);
-			if (!f.exists()) {
-				System.out.println("File '" + file + "' does not exist.");
-				return;
-			} else if (f.isDirectory()) {
-				System.out.println("File '" + file + "' is a directory.");
-				return;
-			} else if (!f.canRead()) {
-				System.out.println("File '" + file + "' is not readable.");
-				return;
-			}
-			String source;
-			try {
-				source = Files.readString(Paths.get(file), StandardCharsets.UTF_8);
-			} catch (IOException e) {
-				e.printStackTrace();
-				continue;
-			}
-			try {
-                Parser.parseExprs(source);
-			} catch (Exception e) {
-				System.out.println(String.format("""
-Syntax error in '%s':
-    %s
-                """, file, e.getMessage()));
-                failed++;
+			Result result = new Result(file);
+			results.add(result);
+			tasks.add(new RecursiveAction() {
+				protected void compute() {
+					result.message = lint(file);
+				}
+			});
+		}
+		ForkJoinTask.invokeAll(tasks);
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		results.sort(Comparator.comparing(result -> result.file));
+        int failed = 0;
+		for (Result result : results) {
+			if (result.message != null) {
+				System.out.println(result.message);
+				failed++;
 			}
 		}
         if (failed == 0) {
@@ -54,5 +74,55 @@ Syntax error in '%s':
         } else {
             System.out.println("Found " + failed + " errors.");
         }
+		System.out.println(String.format("Linted %d file(s) in %.2fs (%.0f files/s)", files.size(), seconds,
+				files.size() / Math.max(seconds, 1e-9)));
+		return failed;
+	}
+
+	/**
+	 * Lint a single file. Files that are unchanged since they were last linted
+	 * are not parsed again.
+	 *
+	 * @return The problem found in the file, or null if there is none.
+	 */
+	private static String lint(String file) {
+		String source;
+		try {
+			source = FileHelper.readFile(Paths.get(file));
+		} catch (IOException e) {
+			return e.getMessage();
+		}
+		String error = LintCache.lint(source);
+		if (error != null) {
+			return String.format("""
+Syntax error in '%s':
+    %s
+                """, file, error);
+		}
+		return null;
+	}
+
+	public static void testLinter() throws Exception {
+		Path dir = Files.createTempDirectory("rsc-test");
+		Files.writeString(dir.resolve("syntax.rs"), "let = 1");
+		Files.writeString(dir.resolve("fine.rs"), "println(\"fine\")");
+		RoutedPrintStream.install();
+
+		{
+			// all files are linted, also after a missing one, and reported in order
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			((RoutedPrintStream) System.out).route(output);
+			int failures = run(List.of(dir.resolve("syntax.rs").toString(), dir.resolve("missing.rs").toString(),
+					dir.resolve("fine.rs").toString()));
+			((RoutedPrintStream) System.out).route(null);
+			assert failures == 2;
+			assert output.toString().indexOf("missing.rs") < output.toString().indexOf("Syntax error in");
+		}
+
+		{
+			// a changed file is checked again
+			Files.writeString(dir.resolve("syntax.rs"), "let a = 1");
+			assert run(List.of(dir.resolve("syntax.rs").toString())) == 0;
+		}
 	}
 }
@@ -1,11 +1,24 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 
+import core.AstCache;
 import core.Interpreter;
+import core.InterpreterPool;
 import core.util.FileHelper;
+import core.util.RoutedPrintStream;
 
 /**
  * @author William Rågstad <william.ragstad@gmail.com>
@@ -25,34 +38,319 @@ public class Runner {
 		run(Arrays.asList(args));
 	}
 
-	private static String currentDirectory;
+	public static int run(List<String> files) {
+		return run(files, (String) null);
+	}
+
+	public static int run(List<String> files, String imageFile) {
+		return run(files, Paths.get(System.getProperty("user.dir")), imageFile);
+	}
+
+	/**
+	 * Run the files relative to a working directory other than the one of the
+	 * process.
+	 */
+	public static int run(List<String> files, Path currentDirectory) {
+		return run(files, currentDirectory, null);
+	}
 
-	public static void run(List<String> files) {
-		currentDirectory = System.getProperty("user.dir");
+	/**
+	 * Run the files one at a time, each starting from the state saved in an image
+	 * instead of an empty environment.
+	 *
+	 * @param files            The script files to run.
+	 * @param currentDirectory The directory to resolve the files from.
+	 * @param imageFile        The image to start from, or null for none.
+	 * @return The exit status, 0 if all files ran successfully and 1 otherwise.
+	 */
+	public static int run(List<String> files, Path currentDirectory, String imageFile) {
+		int status = 0;
+		byte[] image = null;
 		Interpreter i;
 		try {
-			i = new Interpreter();
+			if (imageFile != null) {
+				Path imagePath = currentDirectory.resolve(imageFile);
+				FileHelper.validateIsFile(imagePath);
+				image = Files.readAllBytes(imagePath);
+			}
+			i = newInterpreter(image);
 		} catch (Exception e) {
 			System.out.println(e.getMessage());
-			return;
+			return 1;
 		}
 		for (String file : files) {
 			String source;
-			Path filePath = Paths.get(currentDirectory).resolve(file);
+			Path filePath = currentDirectory.resolve(file);
 			try {
 				source = FileHelper.readFile(filePath);
 			} catch (IOException e) {
 				e.printStackTrace();
+				status = 1;
 				continue;
 			}
 			try {
 				String p2 = filePath.getParent().normalize().toAbsolutePath().toString();
-				i.evalAll(source, p2); // Discard last the expressions value
+				i.evalAll(AstCache.parseExprs(source), p2); // Discard last the expressions value
+				// New environment for each file.
+				if (image != null) {
+					i = newInterpreter(image);
+				} else {
+					i.clear();
+				}
+			} catch (Exception e) {
+				System.out.println(e.getMessage());
+				return 1;
+			}
+		}
+		return status;
+	}
+
+	/**
+	 * Run the files one at a time, evaluating each top-level expression as soon
+	 * as it is parsed instead of parsing the whole file first. Meant for large
+	 * generated scripts, which start printing output right away and do not have
+	 * to be held in memory as a whole. Files are read through a memory mapping
+	 * and are not cached. Running stops at the first file that cannot be read or
+	 * fails.
+	 *
+	 * @param files            The script files to run.
+	 * @param currentDirectory The directory to resolve the files from.
+	 * @return The exit status, 0 if all files ran successfully and 1 otherwise.
+	 */
+	public static int runStream(List<String> files, Path currentDirectory) {
+		Interpreter i;
+		try {
+			i = new Interpreter();
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			return 1;
+		}
+		for (String file : files) {
+			CharSequence source;
+			Path filePath = currentDirectory.resolve(file);
+			try {
+				source = FileHelper.mapFile(filePath);
+			} catch (IOException e) {
+				System.out.println(String.format("Could not read '%s': %s", file, e.getMessage()));
+				return 1;
+			}
+			try {
+				String p2 = filePath.getParent().normalize().toAbsolutePath().toString();
+				i.evalStream(source, p2);
+				i.clear(); // New environment for each file.
 			} catch (Exception e) {
 				System.out.println(e.getMessage());
+				return 1;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Run the files at the same time on a number of worker threads, each with an
+	 * interpreter of its own that is reset between files. The output of each
+	 * file is either collected and printed when the file is done, in the order
+	 * the files were given, or printed as it is written with every line prefixed
+	 * by the name of the file.
+	 *
+	 * @param files            The script files to run.
+	 * @param currentDirectory The directory to resolve the files from.
+	 * @param jobs             The number of files to run at the same time.
+	 * @param prefix           Whether to print lines as they are written, prefixed
+	 *                         with the file name.
+	 * @return The exit status, 0 if all files ran successfully and 1 otherwise.
+	 */
+	public static int runParallel(List<String> files, Path currentDirectory, int jobs, boolean prefix) {
+		InterpreterPool pool;
+		try {
+			pool = new InterpreterPool(Math.max(1, Math.min(jobs, files.size())));
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			return 1;
+		}
+		RoutedPrintStream.install();
+		LinkedBlockingQueue<Output> lines = new LinkedBlockingQueue<>();
+		ExecutorService workers = Executors.newFixedThreadPool(pool.getSize());
+		ArrayList<Future<Boolean>> results = new ArrayList<>();
+		ArrayList<ByteArrayOutputStream[]> outputs = new ArrayList<>();
+		for (String file : files) {
+			ByteArrayOutputStream[] output = { new ByteArrayOutputStream(), new ByteArrayOutputStream() };
+			outputs.add(output);
+			OutputStream out = prefix ? new PrefixedLines(lines, false, file) : output[0];
+			OutputStream err = prefix ? new PrefixedLines(lines, true, file) : output[1];
+			results.add(workers.submit(() -> {
+				((RoutedPrintStream) System.out).route(out);
+				((RoutedPrintStream) System.err).route(err);
+				try {
+					return runFile(pool, currentDirectory.resolve(file));
+				} finally {
+					System.out.flush();
+					System.err.flush();
+					((RoutedPrintStream) System.out).route(null);
+					((RoutedPrintStream) System.err).route(null);
+					out.close();
+					err.close();
+					lines.add(Output.DONE);
+				}
+			}));
+		}
+		workers.shutdown();
+
+		// Output is only printed by this thread, which is not routed to any file
+		int status = 0;
+		try {
+			if (prefix) {
+				for (int done = 0; done < files.size();) {
+					Output line = lines.take();
+					if (line == Output.DONE) {
+						done++;
+					} else {
+						(line.err ? System.err : System.out).write(line.bytes);
+					}
+				}
+			}
+			for (int n = 0; n < files.size(); n++) {
+				if (!results.get(n).get()) {
+					status = 1;
+				}
+				outputs.get(n)[0].writeTo(System.out);
+				outputs.get(n)[1].writeTo(System.err);
+			}
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			return 1;
+		} finally {
+			System.out.flush();
+			System.err.flush();
+		}
+		return status;
+	}
+
+	private static boolean runFile(InterpreterPool pool, Path filePath) {
+		try {
+			String source = FileHelper.readFile(filePath);
+			String p2 = filePath.getParent().normalize().toAbsolutePath().toString();
+			pool.evalAll(AstCache.parseExprs(source), p2);
+			return true;
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * A line written by a file run in parallel, or the end of a file.
+	 */
+	private static class Output {
+		private static final Output DONE = new Output(false, new byte[0]);
+		private final boolean err;
+		private final byte[] bytes;
+
+		private Output(boolean err, byte[] bytes) {
+			this.err = err;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * Splits output into lines prefixed with the name of a file. Lines are only
+	 * passed on when they are complete, or when the file is done.
+	 */
+	private static class PrefixedLines extends OutputStream {
+		private final LinkedBlockingQueue<Output> lines;
+		private final boolean err;
+		private final byte[] prefix;
+		private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+		private PrefixedLines(LinkedBlockingQueue<Output> lines, boolean err, String file) {
+			this.lines = lines;
+			this.err = err;
+			this.prefix = String.format("[%s] ", file).getBytes();
+		}
+
+		public synchronized void write(int b) {
+			line.write(b);
+			if (b == '\n') {
+				passLine();
+			}
+		}
+
+		public synchronized void close() {
+			passLine();
+		}
+
+		private void passLine() {
+			if (line.size() == 0) {
 				return;
 			}
-			i.clear(); // New environment for each file.
+			byte[] bytes = new byte[prefix.length + line.size()];
+			System.arraycopy(prefix, 0, bytes, 0, prefix.length);
+			System.arraycopy(line.toByteArray(), 0, bytes, prefix.length, line.size());
+			lines.add(new Output(err, bytes));
+			line.reset();
+		}
+	}
+
+	/**
+	 * Run the files in the same environment and save its state as an image, which
+	 * other scripts can be run from.
+	 *
+	 * @param files     The script files to run, like a prelude of helper modules.
+	 * @param imageFile The image file to write.
+	 */
+	public static void saveImage(List<String> files, String imageFile) {
+		Path currentDirectory = Paths.get(System.getProperty("user.dir"));
+		try {
+			Interpreter i = new Interpreter();
+			for (String file : files) {
+				Path filePath = currentDirectory.resolve(file);
+				String p2 = filePath.getParent().normalize().toAbsolutePath().toString();
+				i.evalAll(AstCache.parseExprs(FileHelper.readFile(filePath)), p2);
+			}
+			try (OutputStream out = new BufferedOutputStream(
+					Files.newOutputStream(currentDirectory.resolve(imageFile)))) {
+				i.saveImage(out);
+			}
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+		}
+	}
+
+	private static Interpreter newInterpreter(byte[] image) throws Exception {
+		return image != null ? Interpreter.fromImage(new ByteArrayInputStream(image)) : new Interpreter();
+	}
+
+	public static void testRunner() throws Exception {
+		Path dir = Files.createTempDirectory("rsc-test");
+		Files.writeString(dir.resolve("slow.rs"), "println(sum(range(0, 300)))");
+		Files.writeString(dir.resolve("fast.rs"), "println(\"fast\")");
+		Files.writeString(dir.resolve("failing.rs"), "undefined_function(1)");
+		Files.writeString(dir.resolve("branches.rs"), "par { println(\"in par A\"); println(\"in par B\") }");
+		Files.writeString(dir.resolve("counted.rs"), "let total = 0\n" + "let total = total + 1\n".repeat(100) + "total");
+		RoutedPrintStream.install();
+
+		{
+			// files run in parallel print their output in the order of the files
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			((RoutedPrintStream) System.out).route(output);
+			int status = runParallel(List.of("slow.rs", "fast.rs", "slow.rs"), dir, 3, false);
+			int failingStatus = runParallel(List.of("fast.rs", "failing.rs"), dir, 2, false);
+			int branchesStatus = runParallel(List.of("branches.rs", "fast.rs"), dir, 2, false);
+			((RoutedPrintStream) System.out).route(null);
+			assert status == 0 && failingStatus == 1 && branchesStatus == 0;
+			assert output.toString().startsWith("44850\nfast\n44850\nfast\nUndefined function");
+			assert output.toString().contains("in par A\n") && output.toString().contains("in par B\n");
+		}
+
+		{
+			// streamed files stop at the first failure, and the status reports it
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			((RoutedPrintStream) System.out).route(output);
+			int missingStatus = runStream(List.of("fast.rs", "missing.rs", "fast.rs"), dir);
+			int failingStatus = runStream(List.of("failing.rs", "fast.rs"), dir);
+			((RoutedPrintStream) System.out).route(null);
+			assert missingStatus == 1 && failingStatus == 1 && runStream(List.of("counted.rs"), dir) == 0;
+			assert output.toString().startsWith("fast\nCould not read 'missing.rs'") && !output.toString().contains("fast\nfast");
 		}
 	}
 }
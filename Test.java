@@ -1,6 +1,16 @@
+import java.nio.file.Files;
 import java.util.ArrayList;
 import core.*;
 
+/**
+ * Runs all tests. Tests are assertions, so run with assertions enabled. The
+ * recursive evaluations overflow the default stack of the main thread, and
+ * need at least 2 MB:
+ *
+ * <pre>
+ * java -ea -Xss4m Test
+ * </pre>
+ */
 public class Test {
     public static void main(String[] args) throws Exception {
         Tokenizer.testTokenizer();
@@ -74,6 +84,23 @@ public class Test {
 
         assert ((Atom.Integer) val13).val == 2178309;
 
+        // Tests of the components, kept next to the code they test
+        System.setProperty("rsc.cache.dir", Files.createTempDirectory("rsc-test").resolve("cache").toString());
+        Expr.testLoopExpr();
+        Expr.testParBlockExpr();
+        Interpreter.testInterpreter();
+        ModuleCache.testModuleCache();
+        AstCache.testAstCache();
+        ProgramCompiler.testProgramCompiler();
+        core.script.RustScriptEngine.testRustScriptEngine();
+        InterpreterPool.testInterpreterPool();
+        EvaluationLimits.testEvaluationLimits();
+        Scheduler.testScheduler();
+        Atom.testAtom();
+        LintCache.testLintCache();
+        Linter.testLinter();
+        Runner.testRunner();
+
         System.out.println("All tests passed!");
     }
 }
@@ -0,0 +1,23 @@
+#!/bin/sh
+# Build the RustScript CLI jar and its class data sharing archive to dist/bin
+set -e
+cd "$(dirname "$0")"
+rm -rf dist/bin build
+mkdir -p dist/bin build/classes
+javac -encoding UTF-8 -d build/classes *.java core/*.java core/util/*.java core/script/*.java
+jar -cfm dist/bin/rsc.jar manifest.txt -C build/classes . META-INF/services
+cp dist/rsc dist/bin/rsc
+chmod +x dist/bin/rsc
+
+# Train the archive on representative scripts. Every script is run twice with
+# an empty AST cache, so that the classes for both parsing and reading cached
+# files are loaded.
+echo "Training class data sharing archive..."
+export RSC_TRAINING_CACHE="build/cache"
+java -XX:ArchiveClassesAtExit=dist/bin/rsc.jsa -Drsc.cache.dir="$RSC_TRAINING_CACHE" -jar dist/bin/rsc.jar \
+	dist/training/*.rs dist/training/*.rs > /dev/null
+java -XX:SharedArchiveFile=dist/bin/rsc.jsa -jar dist/bin/rsc.jar -v > /dev/null
+rm -rf build
+
+echo
+echo "Done!"
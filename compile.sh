@@ -0,0 +1,4 @@
+#!/bin/sh
+# Compile the RustScript class files in place
+cd "$(dirname "$0")"
+javac -encoding UTF-8 *.java core/*.java core/util/*.java core/script/*.java
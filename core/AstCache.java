@@ -0,0 +1,249 @@
+package core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * The AstCache keeps the parsed expressions of source files on disk, so that
+ * the same source code is only tokenized and parsed once. Each file in the
+ * cache directory is named after a hash of the source code it was parsed from
+ * and of the classes of the parser and the AST, and is written by the
+ * AstWriter. Any change to those classes therefore stops old files from being
+ * used.
+ *
+ * <p>
+ * The cache directory is {@code ~/.rsc/cache} by default, and can be changed
+ * with the {@code rsc.cache.dir} system property. Setting the property to an
+ * empty string disables the cache. Files are touched when they are used, and
+ * the least recently used ones are removed when there are more than
+ * {@value #MAX_ENTRIES}.
+ * </p>
+ */
+public class AstCache {
+	private static final String EXTENSION = ".ast";
+	private static final List<Class<?>> AST_CLASSES = List.of(Parser.class, Tokenizer.class, TokenBuffer.class,
+			Token.class, TokenTy.class, BindingPower.class, PrefixBindingPower.class, AstWriter.class, AstReader.class,
+			Expr.class, Atom.class);
+	static final int MAX_ENTRIES = 10_000; // Entries kept in the cache directory, the oldest are removed first
+	private static final int PRUNE_INTERVAL = 1_000; // Entries written between checks of the number of entries
+	private static final long TEMP_FILE_AGE = 60 * 60 * 1000; // Milliseconds until temporary files are left over
+	private static final AtomicInteger written = new AtomicInteger();
+	private static byte[] astHash; // Hash of the AST classes, computed on first use
+
+	/**
+	 * Parse source code, or load its expressions from the cache if it has been
+	 * parsed before.
+	 *
+	 * @param source The source code to parse.
+	 * @return The parsed expressions.
+	 * @throws Exception If the source code cannot be parsed.
+	 */
+	public static ArrayList<Expr> parseExprs(String source) throws Exception {
+		Path cacheDir = getCacheDirectory();
+		if (cacheDir == null) {
+			return Parser.parseExprs(source);
+		}
+		Path cacheFile = cacheDir.resolve(hash(source) + EXTENSION);
+		if (Files.isRegularFile(cacheFile)) {
+			try (InputStream in = new BufferedInputStream(Files.newInputStream(cacheFile))) {
+				ArrayList<Expr> exprs = new AstReader(in).readProgram();
+				touch(cacheFile);
+				return exprs;
+			} catch (IOException | RuntimeException e) {
+				// Corrupt or outdated cache file, parse the source again
+			}
+		}
+		ArrayList<Expr> exprs = Parser.parseExprs(source);
+		try {
+			write(cacheFile, exprs);
+			written(cacheDir);
+		} catch (IOException e) {
+			// The cache is only an optimization
+		}
+		return exprs;
+	}
+
+	/**
+	 * Get the directory where parsed files are cached.
+	 *
+	 * @return The cache directory, or null if the cache is disabled.
+	 */
+	public static Path getCacheDirectory() {
+		String dir = System.getProperty("rsc.cache.dir");
+		if (dir == null) {
+			return Paths.get(System.getProperty("user.home"), ".rsc", "cache");
+		}
+		return dir.isEmpty() ? null : Paths.get(dir);
+	}
+
+	private static void write(Path cacheFile, ArrayList<Expr> exprs) throws IOException {
+		Files.createDirectories(cacheFile.getParent());
+		// Write to a temporary file first, so that other processes never read a
+		// partially written cache file
+		Path tempFile = Files.createTempFile(cacheFile.getParent(), "ast", ".tmp");
+		try {
+			try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tempFile))) {
+				new AstWriter(out).writeProgram(exprs);
+			}
+			Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tempFile);
+		}
+	}
+
+	private static String hash(String source) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(getAstHash());
+			return HexFormat.of().formatHex(digest.digest(source.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static synchronized byte[] getAstHash() throws NoSuchAlgorithmException {
+		if (astHash == null) {
+			astHash = hashClasses("ast" + AstWriter.VERSION, AST_CLASSES);
+		}
+		return astHash;
+	}
+
+	/**
+	 * Hash the class files of classes and of the classes nested in them. If a
+	 * class file cannot be read, only the prefix stands for it.
+	 *
+	 * @param prefix  Hashed before the classes, like the versions they implement.
+	 * @param classes The classes to hash.
+	 * @return The hash.
+	 */
+	static byte[] hashClasses(String prefix, List<Class<?>> classes) throws NoSuchAlgorithmException {
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		digest.update(prefix.getBytes(StandardCharsets.UTF_8));
+		ArrayList<Class<?>> pending = new ArrayList<>(classes);
+		while (!pending.isEmpty()) {
+			Class<?> hashed = pending.remove(pending.size() - 1);
+			String name = hashed.getName();
+			try (InputStream in = hashed.getResourceAsStream(name.substring(name.lastIndexOf('.') + 1) + ".class")) {
+				if (in != null) {
+					digest.update(in.readAllBytes());
+				}
+			} catch (IOException e) {
+				// Only the prefix is hashed for this class
+			}
+			pending.addAll(List.of(hashed.getDeclaredClasses()));
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * Mark a cache file as recently used, so that it is kept when the cache is
+	 * pruned.
+	 */
+	static void touch(Path cacheFile) {
+		try {
+			Files.setLastModifiedTime(cacheFile, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (IOException e) {
+			// Removed in the meantime, or not ours to touch
+		}
+	}
+
+	/**
+	 * Report that a file was written to the cache directory, which is pruned
+	 * every so often.
+	 */
+	static void written(Path cacheDir) {
+		if (written.getAndIncrement() % PRUNE_INTERVAL == 0) {
+			prune(cacheDir, MAX_ENTRIES);
+		}
+	}
+
+	/**
+	 * Remove the least recently used files from a cache directory, and temporary
+	 * files left behind by processes that stopped while writing.
+	 *
+	 * @param cacheDir   The cache directory.
+	 * @param maxEntries The number of files to keep.
+	 */
+	static void prune(Path cacheDir, int maxEntries) {
+		HashMap<Path, FileTime> entries = new HashMap<>();
+		try (Stream<Path> files = Files.list(cacheDir)) {
+			for (Path file : (Iterable<Path>) files::iterator) {
+				try {
+					FileTime time = Files.getLastModifiedTime(file);
+					if (!file.toString().endsWith(".tmp")) {
+						entries.put(file, time);
+					} else if (System.currentTimeMillis() - time.toMillis() > TEMP_FILE_AGE) {
+						Files.deleteIfExists(file);
+					}
+				} catch (IOException e) {
+					// Removed by another process in the meantime
+				}
+			}
+		} catch (IOException e) {
+			return;
+		}
+		if (entries.size() <= maxEntries) {
+			return;
+		}
+		ArrayList<Path> oldestFirst = new ArrayList<>(entries.keySet());
+		oldestFirst.sort(Comparator.comparing(entries::get));
+		for (int i = 0; i < oldestFirst.size() - maxEntries; i++) {
+			try {
+				Files.deleteIfExists(oldestFirst.get(i));
+			} catch (IOException e) {
+				// Kept until the next time the cache is pruned
+			}
+		}
+	}
+
+	public static void testAstCache() throws Exception {
+		{
+			// parsed files are cached on disk, and read back with the same source positions
+			String source = "let f = fn (n) => match n | x and x > 1 then \"b\" | _ then [1.5, true, 'c']\nf(2)";
+			ArrayList<Expr> parsed = parseExprs(source);
+			ArrayList<Expr> cached = parseExprs(source);
+			assert parsed != cached && parsed.toString().equals(cached.toString());
+			assert parsed.get(1).startIndex == cached.get(1).startIndex && parsed.get(1).endIndex == cached.get(1).endIndex;
+			try (var entries = Files.list(getCacheDirectory())) {
+				assert entries.anyMatch(entry -> entry.toString().endsWith(".ast"));
+			}
+		}
+
+		{
+			// pruning keeps the most recently used files, and removes old temporary files
+			Path dir = Files.createTempDirectory("rsc-test");
+			for (int i = 0; i < 5; i++) {
+				Path entry = Files.writeString(dir.resolve(i + EXTENSION), "");
+				Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis() - (5 - i) * 60_000));
+			}
+			touch(dir.resolve("0" + EXTENSION));
+			Path leftOver = Files.writeString(dir.resolve("ast1.tmp"), "");
+			Files.setLastModifiedTime(leftOver, FileTime.fromMillis(System.currentTimeMillis() - 2 * TEMP_FILE_AGE));
+			Path writing = Files.writeString(dir.resolve("ast2.tmp"), "");
+			prune(dir, 2);
+			try (var entries = Files.list(dir)) {
+				assert entries.map(entry -> entry.getFileName().toString()).sorted().toList()
+						.equals(List.of("0.ast", "4.ast", "ast2.tmp"));
+			}
+			assert Files.exists(writing);
+		}
+	}
+}
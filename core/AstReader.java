@@ -0,0 +1,166 @@
+package core;
+
+import static core.AstWriter.*;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * The AstReader reads expressions written by the AstWriter.
+ */
+public class AstReader {
+	private static final BinOp[] BIN_OPS = BinOp.values();
+	private static final PrefixOp[] PREFIX_OPS = PrefixOp.values();
+
+	protected final DataInputStream in;
+
+	public AstReader(InputStream in) {
+		this.in = new DataInputStream(in);
+	}
+
+	/**
+	 * Read a whole program written by AstWriter.writeProgram.
+	 *
+	 * @return The top-level expressions of the program.
+	 * @throws IOException If the input is not a program of the current version.
+	 */
+	public ArrayList<Expr> readProgram() throws IOException {
+		readFormatHeader();
+		return readExprs();
+	}
+
+	/**
+	 * Read and check the magic number and version of the format.
+	 *
+	 * @throws IOException If the input is not of the current version.
+	 */
+	public void readFormatHeader() throws IOException {
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a compiled RustScript program");
+		}
+		int version = readInt();
+		if (version != VERSION) {
+			throw new IOException(String.format("Unsupported compiled program version %d", version));
+		}
+	}
+
+	public ArrayList<Expr> readExprs() throws IOException {
+		int size = readInt();
+		ArrayList<Expr> exprs = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			exprs.add(readExpr());
+		}
+		return exprs;
+	}
+
+	public Expr readExpr() throws IOException {
+		int tag = in.readByte();
+		if (tag == NULL) {
+			return null;
+		}
+		int s = readInt();
+		int e = readInt();
+		return switch (tag) {
+			case ATOMIC -> new Expr.AtomicExpr(readAtom(), s, e);
+			case PREFIX -> new Expr.PrefixExpr(PREFIX_OPS[readInt()], readExpr(), s, e);
+			case BINARY -> new Expr.BinaryExpr(BIN_OPS[readInt()], readExpr(), readExpr(), s, e);
+			case BLOCK -> new Expr.BlockExpr(readExprs(), s, e);
+			case PAR -> new Expr.ParBlockExpr(readExprs(), s, e);
+			case IF -> new Expr.IfExpr(readExpr(), readExpr(), readExpr(), s, e);
+			case LOOP -> new Expr.LoopExpr(readStrings(), readExprs(), readExpr(), readExpr(), s, e);
+			case MATCH -> {
+				Expr value = readExpr();
+				int size = readInt();
+				ArrayList<Expr.MatchCaseExpr> cases = new ArrayList<>(size);
+				for (int i = 0; i < size; i++) {
+					int cs = readInt();
+					int ce = readInt();
+					cases.add(new Expr.MatchCaseExpr(value, readString(), readExpr(), readExpr(), cs, ce));
+				}
+				yield new Expr.MatchExpr(value, cases, s, e);
+			}
+			case MODULE -> new Expr.ModuleExpr(readString(), readExprs(), s, e);
+			case IMPORT -> new Expr.ImportExpr(readStrings(), readString(), s, e);
+			case CALL -> new Expr.LambdaCall(readAtom(), readExprs(), s, e);
+			case ASSIGN -> new Expr.AssignExpr(readString(), readExpr(), s, e);
+			case VARIATION -> new Expr.VariationExpr(readString(), readExpr(), s, e);
+			case PUBLIC -> new Expr.PublicExpr(readExpr(), s, e);
+			default -> throw new IOException(String.format("Unknown expression tag %d", tag));
+		};
+	}
+
+	public Atom readAtom() throws IOException {
+		int tag = in.readByte();
+		return switch (tag) {
+			case INTEGER -> new Atom.Integer(in.readInt());
+			case FLOAT -> new Atom.Float(in.readDouble());
+			case BOOL -> new Atom.Bool(in.readBoolean());
+			case CHAR -> new Atom.Char(in.readChar());
+			case STR -> new Atom.Str(readString());
+			case LIST -> new Atom.List(readExprs());
+			case IDENT -> new Atom.Ident(readString());
+			case IDENT_LIST -> new Atom.IdentList(readStrings());
+			case LAMBDA -> readLambda();
+			case UNIT -> new Atom.Unit();
+			default -> readAtom(tag);
+		};
+	}
+
+	/**
+	 * Read an atom with a tag that is not part of the AST format.
+	 */
+	protected Atom readAtom(int tag) throws IOException {
+		throw new IOException(String.format("Unknown atom tag %d", tag));
+	}
+
+	protected Atom.Lambda readLambda() throws IOException {
+		String name = readNullableString();
+		int size = readInt();
+		Atom.Lambda lambda = null;
+		for (int i = 0; i < size; i++) {
+			ArrayList<String> argNames = readStrings();
+			Expr expr = readExpr();
+			if (lambda == null) {
+				lambda = new Atom.Lambda(expr, argNames);
+			} else {
+				lambda.addVariation(expr, argNames);
+			}
+		}
+		lambda.setName(name);
+		return lambda;
+	}
+
+	public int readInt() throws IOException {
+		int v = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = in.readUnsignedByte();
+			v |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	public String readString() throws IOException {
+		byte[] bytes = new byte[readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	protected String readNullableString() throws IOException {
+		return in.readBoolean() ? readString() : null;
+	}
+
+	protected ArrayList<String> readStrings() throws IOException {
+		int size = readInt();
+		ArrayList<String> values = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			values.add(readString());
+		}
+		return values;
+	}
+}
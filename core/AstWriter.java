@@ -0,0 +1,233 @@
+package core;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The AstWriter writes parsed expressions in a compact binary format, which is
+ * read back by the AstReader without having to tokenize and parse the source
+ * code again. Source positions of all expressions are kept.
+ *
+ * <p>
+ * Every expression and atom is written as a tag byte followed by its fields.
+ * Integers are written as variable length numbers and strings as UTF-8.
+ * </p>
+ */
+public class AstWriter {
+	static final int MAGIC = 0x52534341; // "RSCA"
+	static final int VERSION = 2; // Increase when the format changes, changes to the parser are detected by the AstCache
+
+	// Expression tags
+	static final int NULL = 0, ATOMIC = 1, PREFIX = 2, BINARY = 3, BLOCK = 4, IF = 5, LOOP = 6, MATCH = 7,
+			MODULE = 8, IMPORT = 9, CALL = 10, ASSIGN = 11, VARIATION = 12, PUBLIC = 13, PAR = 14;
+
+	// Atom tags
+	static final int INTEGER = 1, FLOAT = 2, BOOL = 3, CHAR = 4, STR = 5, LIST = 6, IDENT = 7, IDENT_LIST = 8,
+			LAMBDA = 9, UNIT = 10;
+
+	protected final DataOutputStream out;
+
+	public AstWriter(OutputStream out) {
+		this.out = new DataOutputStream(out);
+	}
+
+	/**
+	 * Write a whole program, including the format header.
+	 *
+	 * @param exprs The top-level expressions of the program.
+	 */
+	public void writeProgram(List<Expr> exprs) throws IOException {
+		writeFormatHeader();
+		writeExprs(exprs);
+		out.flush();
+	}
+
+	/**
+	 * Write the magic number and version of the format.
+	 */
+	public void writeFormatHeader() throws IOException {
+		out.writeInt(MAGIC);
+		writeInt(VERSION);
+	}
+
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	public void writeExprs(List<Expr> exprs) throws IOException {
+		writeInt(exprs.size());
+		for (Expr expr : exprs) {
+			writeExpr(expr);
+		}
+	}
+
+	public void writeExpr(Expr expr) throws IOException {
+		if (expr == null) {
+			out.writeByte(NULL);
+			return;
+		}
+		if (expr instanceof Expr.AtomicExpr) {
+			writeHeader(ATOMIC, expr);
+			writeAtom(((Expr.AtomicExpr) expr).val);
+		} else if (expr instanceof Expr.PrefixExpr) {
+			Expr.PrefixExpr e = (Expr.PrefixExpr) expr;
+			writeHeader(PREFIX, expr);
+			writeInt(e.op.ordinal());
+			writeExpr(e.rhs);
+		} else if (expr instanceof Expr.BinaryExpr) {
+			Expr.BinaryExpr e = (Expr.BinaryExpr) expr;
+			writeHeader(BINARY, expr);
+			writeInt(e.op.ordinal());
+			writeExpr(e.lhs);
+			writeExpr(e.rhs);
+		} else if (expr instanceof Expr.BlockExpr) {
+			writeHeader(BLOCK, expr);
+			writeExprs(((Expr.BlockExpr) expr).exprs);
+		} else if (expr instanceof Expr.ParBlockExpr) {
+			writeHeader(PAR, expr);
+			writeExprs(((Expr.ParBlockExpr) expr).exprs);
+		} else if (expr instanceof Expr.IfExpr) {
+			Expr.IfExpr e = (Expr.IfExpr) expr;
+			writeHeader(IF, expr);
+			writeExpr(e.cond);
+			writeExpr(e.lhs);
+			writeExpr(e.rhs);
+		} else if (expr instanceof Expr.LoopExpr) {
+			Expr.LoopExpr e = (Expr.LoopExpr) expr;
+			writeHeader(LOOP, expr);
+			writeStrings(e.names);
+			writeExprs(e.inits);
+			writeExpr(e.cond);
+			writeExpr(e.body);
+		} else if (expr instanceof Expr.MatchExpr) {
+			Expr.MatchExpr e = (Expr.MatchExpr) expr;
+			writeHeader(MATCH, expr);
+			writeExpr(e.value);
+			writeInt(e.cases.size());
+			for (Expr.MatchCaseExpr matchCase : e.cases) {
+				writeInt(matchCase.startIndex);
+				writeInt(matchCase.endIndex);
+				writeString(matchCase.pattern);
+				writeExpr(matchCase.constraint);
+				writeExpr(matchCase.clause);
+			}
+		} else if (expr instanceof Expr.ModuleExpr) {
+			Expr.ModuleExpr e = (Expr.ModuleExpr) expr;
+			writeHeader(MODULE, expr);
+			writeString(e.name);
+			writeExprs(e.body);
+		} else if (expr instanceof Expr.ImportExpr) {
+			Expr.ImportExpr e = (Expr.ImportExpr) expr;
+			writeHeader(IMPORT, expr);
+			writeStrings(e.importList);
+			writeString(e.fileName);
+		} else if (expr instanceof Expr.LambdaCall) {
+			Expr.LambdaCall e = (Expr.LambdaCall) expr;
+			writeHeader(CALL, expr);
+			writeAtom(e.identifier);
+			writeExprs(e.variables);
+		} else if (expr instanceof Expr.AssignExpr) {
+			Expr.AssignExpr e = (Expr.AssignExpr) expr;
+			writeHeader(ASSIGN, expr);
+			writeString(e.lhs);
+			writeExpr(e.rhs);
+		} else if (expr instanceof Expr.VariationExpr) {
+			Expr.VariationExpr e = (Expr.VariationExpr) expr;
+			writeHeader(VARIATION, expr);
+			writeString(e.lhs);
+			writeExpr(e.rhs);
+		} else if (expr instanceof Expr.PublicExpr) {
+			writeHeader(PUBLIC, expr);
+			writeExpr(((Expr.PublicExpr) expr).expr);
+		} else {
+			throw new IOException("Cannot write expression " + expr.getClass().getSimpleName());
+		}
+	}
+
+	public void writeAtom(Atom atom) throws IOException {
+		if (atom instanceof Atom.Integer) {
+			out.writeByte(INTEGER);
+			out.writeInt(((Atom.Integer) atom).val);
+		} else if (atom instanceof Atom.Float) {
+			out.writeByte(FLOAT);
+			out.writeDouble(((Atom.Float) atom).val);
+		} else if (atom instanceof Atom.Bool) {
+			out.writeByte(BOOL);
+			out.writeBoolean(((Atom.Bool) atom).val);
+		} else if (atom instanceof Atom.Char) {
+			out.writeByte(CHAR);
+			out.writeChar(((Atom.Char) atom).val);
+		} else if (atom instanceof Atom.Str) {
+			out.writeByte(STR);
+			writeString(((Atom.Str) atom).getStringValue(false));
+		} else if (atom instanceof Atom.List) {
+			out.writeByte(LIST);
+			writeExprs(((Atom.List) atom).list);
+		} else if (atom instanceof Atom.Ident) {
+			out.writeByte(IDENT);
+			writeString(((Atom.Ident) atom).name);
+		} else if (atom instanceof Atom.IdentList) {
+			out.writeByte(IDENT_LIST);
+			writeStrings(((Atom.IdentList) atom).identifiers);
+		} else if (atom instanceof Atom.Lambda) {
+			out.writeByte(LAMBDA);
+			writeLambda((Atom.Lambda) atom);
+		} else if (atom instanceof Atom.Unit && !(atom instanceof Atom.UnitBox)) {
+			out.writeByte(UNIT);
+		} else {
+			throw new IOException("Cannot write atom " + atom.getClass().getSimpleName());
+		}
+	}
+
+	protected void writeLambda(Atom.Lambda lambda) throws IOException {
+		writeNullableString(lambda.getName());
+		writeInt(lambda.variations.size());
+		for (Atom.Lambda.LambdaVariation variation : lambda.variations.values()) {
+			writeStrings(variation.argNames);
+			writeExpr(variation.expr);
+		}
+	}
+
+	private void writeHeader(int tag, Expr expr) throws IOException {
+		out.writeByte(tag);
+		writeInt(expr.startIndex);
+		writeInt(expr.endIndex);
+	}
+
+	/**
+	 * Write an integer using as few bytes as possible. Small non-negative numbers
+	 * like source positions and sizes take a single byte.
+	 */
+	public void writeInt(int value) throws IOException {
+		int v = (value << 1) ^ (value >> 31); // Zig-zag encode negative numbers like -1
+		while ((v & ~0x7F) != 0) {
+			out.writeByte((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		out.writeByte(v);
+	}
+
+	public void writeString(String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	protected void writeNullableString(String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			writeString(value);
+		}
+	}
+
+	protected void writeStrings(ArrayList<String> values) throws IOException {
+		writeInt(values.size());
+		for (String value : values) {
+			writeString(value);
+		}
+	}
+}
@@ -1,9 +1,19 @@
 package core;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import core.util.EscapeSequence;
+import core.util.FileHelper;
+import core.util.Threads;
 
 /**
  * @author Mikail Khan <mikail@mikail-khan.com>
@@ -76,6 +86,7 @@ public abstract class Atom {
 		public ArrayList<Expr> list;
 
 		public List(ArrayList<Expr> list) {
+			Governor.allocate(list.size());
 			this.list = list;
 		}
 
@@ -117,6 +128,7 @@ public abstract class Atom {
 
 	public static class Str extends List {
 		private static ArrayList<Expr> split(String val) {
+			Governor.allocate(val.length());
 			ArrayList<Expr> list = new ArrayList<Expr>();
 			for (int i = 0; i < val.length(); i++) {
 				list.add(new Expr.AtomicExpr(new Atom.Char(val.charAt(i))));
@@ -184,6 +196,14 @@ public abstract class Atom {
 			return moduleScope;
 		}
 
+		public String getName() {
+			return name;
+		}
+
+		public ArrayList<Expr> getBody() {
+			return body;
+		}
+
 		public String toString() {
 			return String.format("Module[%s] { scope: %s }", name, moduleScope.toString());
 		}
@@ -203,6 +223,34 @@ public abstract class Atom {
 			this(null, expr, argNames);
 		}
 
+		Lambda(String name, HashMap<java.lang.Integer, LambdaVariation> variations, Scope scope) {
+			this.name = name;
+			this.variations = new HashMap<java.lang.Integer, LambdaVariation>(variations);
+			this.scope = scope;
+		}
+
+		/**
+		 * Copy the lambda so that variations can be added to the copy without
+		 * changing the original.
+		 *
+		 * @return A new lambda with the same variations and scope.
+		 */
+		public Lambda copy() {
+			return new Lambda(name, variations, scope);
+		}
+
+		/**
+		 * Create a closure of the lambda in the scope it is evaluated in. The
+		 * parsed lambda is left unchanged, so that a program can be evaluated by
+		 * several threads at once, and so that every closure keeps its own scope.
+		 *
+		 * @param scope The scope the lambda captures.
+		 * @return A new lambda with the same variations.
+		 */
+		public Lambda bind(Scope scope) {
+			return new Lambda(name, variations, scope);
+		}
+
 		public void addVariation(Expr expr, ArrayList<String> argNames) {
 			if (variations.containsKey(argNames.size())) {
 				throw new RuntimeException("Lambda already has a variation with arity " + argNames.size());
@@ -210,6 +258,31 @@ public abstract class Atom {
 			variations.put(argNames.size(), new LambdaVariation(expr, argNames));
 		}
 
+		/**
+		 * Call the lambda from outside of any expression, like from Java code.
+		 *
+		 * @param args The evaluated arguments.
+		 * @return The value of the lambda body.
+		 * @throws Exception If there is no variation taking that many arguments.
+		 */
+		public Atom call(java.util.List<Atom> args) throws Exception {
+			LambdaVariation variation = variations.get(args.size());
+			if (variation == null) {
+				throw new Exception(String.format("Could not find function variation matching %s/%s.", name,
+						args.size()));
+			}
+			Scope callScope = scope.deriveNew("Lambda call " + name);
+			for (int i = 0; i < args.size(); i++) {
+				callScope.set(variation.argNames.get(i), args.get(i));
+			}
+			Governor governor = Governor.enterCall();
+			try {
+				return variation.expr.eval(callScope);
+			} finally {
+				Governor.exitCall(governor);
+			}
+		}
+
 		public void setScope(Scope scope) {
 			this.scope = scope;
 		}
@@ -218,6 +291,10 @@ public abstract class Atom {
 			return this.scope;
 		}
 
+		public String getName() {
+			return this.name;
+		}
+
 		public void setName(String name) {
 			this.name = name;
 		}
@@ -290,6 +367,246 @@ public abstract class Atom {
 		}
 	}
 
+	/**
+	 * The result of a lambda running on a thread of its own, started by spawn.
+	 * The lambda runs on a copy of the scopes it was created in, so that it does
+	 * not see variables defined after it was spawned.
+	 */
+	public static class Future extends Atom {
+		private final CompletableFuture<Atom> result = new CompletableFuture<>();
+
+		/**
+		 * Start calling a lambda without arguments on a new thread.
+		 *
+		 * @param lambda The lambda to call.
+		 * @return The future value of the call.
+		 */
+		public static Future spawn(Lambda lambda) {
+			Future future = new Future();
+			Lambda task = lambda.bind(lambda.getScope().snapshot());
+			Governor fork = Governor.fork(null, false); // Stopped when the evaluation spawning it ends
+			Threads.start(() -> {
+				Governor.install(fork);
+				try {
+					future.result.complete(task.call(new ArrayList<>()));
+				} catch (Throwable e) {
+					future.result.completeExceptionally(e);
+				} finally {
+					Governor.restore(null);
+				}
+			});
+			return future;
+		}
+
+		/**
+		 * Wait for the lambda to return.
+		 *
+		 * @return The value returned by the lambda.
+		 * @throws Exception The error the lambda failed with.
+		 */
+		public Atom await() throws Exception {
+			while (true) {
+				try {
+					return result.get(Governor.waiting(), TimeUnit.MILLISECONDS);
+				} catch (TimeoutException e) {
+					// Not done yet, check the limits of the caller again
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof Exception) {
+						throw (Exception) e.getCause();
+					}
+					throw e;
+				}
+			}
+		}
+
+		public String toString() {
+			return String.format("Future[%s]", result.isDone() ? "done" : "running");
+		}
+	}
+
+	/**
+	 * A bounded queue of values sent between spawned lambdas. Sending to a full
+	 * channel waits until a value is received, and receiving from an empty
+	 * channel waits until a value is sent.
+	 */
+	public static class Channel extends Atom {
+		private final ArrayBlockingQueue<Atom> queue;
+		private final boolean transfer; // Values are copied, used between isolates
+
+		public Channel(int capacity) {
+			this(capacity, false);
+		}
+
+		Channel(int capacity, boolean transfer) {
+			this.queue = new ArrayBlockingQueue<>(capacity);
+			this.transfer = transfer;
+		}
+
+		public void send(Atom value) throws Exception {
+			Atom sent = transfer ? Isolate.transfer(value) : value;
+			while (!queue.offer(sent, Governor.waiting(), TimeUnit.MILLISECONDS)) {
+				// Full, check the limits of the sender again
+			}
+		}
+
+		public Atom receive() throws InterruptedException {
+			while (true) {
+				Atom value = queue.poll(Governor.waiting(), TimeUnit.MILLISECONDS);
+				if (value != null) {
+					return value;
+				}
+			}
+		}
+
+		/**
+		 * Receive a value, waiting at most the given time.
+		 *
+		 * @return The value, or null if none was sent in time.
+		 */
+		public Atom receive(long millis) throws InterruptedException {
+			return queue.poll(millis, TimeUnit.MILLISECONDS);
+		}
+
+		public String toString() {
+			return String.format("Channel { size: %s, capacity: %s }", queue.size(),
+					queue.size() + queue.remainingCapacity());
+		}
+	}
+
+	/**
+	 * A script running in an interpreter of its own on another thread, sharing
+	 * nothing with the script that started it. They talk through two mailboxes,
+	 * which the worker script knows as the channels inbox and outbox, and every
+	 * value sent between them is copied. The worker shares the limits of the
+	 * evaluation that started it, and is stopped when that evaluation ends.
+	 */
+	public static class Isolate extends Atom {
+		private static final int MAILBOX_CAPACITY = 64;
+
+		private final String name;
+		private final Channel inbox = new Channel(MAILBOX_CAPACITY, true);
+		private final Channel outbox = new Channel(MAILBOX_CAPACITY, true);
+		private final CompletableFuture<Atom> result = new CompletableFuture<>();
+
+		private Isolate(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * Start running a script file in a new interpreter.
+		 *
+		 * @param filePath The script file.
+		 * @return The isolate running the script.
+		 * @throws Exception If the file cannot be read or parsed.
+		 */
+		public static Isolate start(Path filePath) throws Exception {
+			ArrayList<Expr> compiled = ModuleCache.getCompiledModule(filePath); // Compiled programs have no parser
+			if (compiled == null) {
+				FileHelper.validateIsFile(filePath);
+			}
+			ArrayList<Expr> exprs = compiled != null ? compiled
+					: AstCache.parseExprs(FileHelper.readFile(filePath));
+			Isolate isolate = new Isolate(filePath.getFileName().toString());
+			Interpreter worker = new Interpreter();
+			worker.getGlobalScope().set("inbox", isolate.inbox);
+			worker.getGlobalScope().set("outbox", isolate.outbox);
+			String directory = filePath.toAbsolutePath().getParent().toString();
+			Governor fork = Governor.fork(null, false); // The worker shares the limits of the coordinator
+			Threads.start(() -> {
+				Governor.install(fork);
+				try {
+					Atom[] results = worker.evalAll(exprs, directory);
+					isolate.result.complete(results.length > 0 ? transfer(results[results.length - 1]) : new Unit());
+				} catch (Throwable e) {
+					isolate.result.completeExceptionally(e);
+				} finally {
+					Governor.restore(null);
+				}
+			});
+			return isolate;
+		}
+
+		/**
+		 * Send a copy of a value to the inbox of the script.
+		 */
+		public void send(Atom value) throws Exception {
+			inbox.send(value);
+		}
+
+		/**
+		 * Receive a value from the outbox of the script.
+		 *
+		 * @throws Exception If the script finished or failed without sending
+		 *                   anything more.
+		 */
+		public Atom receive() throws Exception {
+			while (true) {
+				Atom value = outbox.receive(Governor.waiting());
+				if (value != null) {
+					return value;
+				}
+				if (result.isDone()) {
+					value = outbox.receive(0);
+					if (value != null) {
+						return value;
+					}
+					await();
+					throw new Exception(String.format("Isolate %s finished without sending a value", name));
+				}
+			}
+		}
+
+		/**
+		 * Wait for the script to finish.
+		 *
+		 * @return A copy of the value of the last expression of the script.
+		 * @throws Exception If the script failed.
+		 */
+		public Atom await() throws Exception {
+			while (true) {
+				try {
+					return result.get(Governor.waiting(), TimeUnit.MILLISECONDS);
+				} catch (TimeoutException e) {
+					// Not done yet, check the limits of the caller again
+				} catch (ExecutionException e) {
+					throw new Exception(String.format("Isolate %s failed: %s", name, e.getCause().getMessage()),
+							e.getCause());
+				}
+			}
+		}
+
+		/**
+		 * Copy a value so that it can be given to another isolate. Functions,
+		 * modules and other values tied to the scopes of an interpreter cannot be
+		 * copied.
+		 *
+		 * @param value The value to copy.
+		 * @return The copy, or the value itself if it is immutable.
+		 * @throws Exception If the value cannot be copied.
+		 */
+		static Atom transfer(Atom value) throws Exception {
+			if (value instanceof Str) {
+				return new Str(((Str) value).getStringValue(false));
+			} else if (value instanceof List) {
+				ArrayList<Expr> copy = new ArrayList<>(((List) value).list.size());
+				for (Expr e : ((List) value).list) {
+					copy.add(new Expr.AtomicExpr(transfer(((Expr.AtomicExpr) e).val)));
+				}
+				return new List(copy);
+			} else if (value instanceof UnitBox) {
+				return transfer(((UnitBox) value).getValue());
+			} else if (value instanceof Integer || value instanceof Float || value instanceof Bool
+					|| value instanceof Char || value instanceof Unit || value instanceof Isolate) {
+				return value;
+			}
+			throw new Exception(String.format("Cannot send %s to another isolate", value.getClass().getSimpleName()));
+		}
+
+		public String toString() {
+			return String.format("Isolate[%s] { %s }", name, result.isDone() ? "finished" : "running");
+		}
+	}
+
 	public Atom add(Atom rhs) throws Exception {
 		if (this instanceof List && !(this instanceof Str) && ((List) this).isCharArray()) {
 			// If a List but classify as Str, convert it
@@ -324,6 +641,7 @@ public abstract class Atom {
 			List lArr = (List) this;
 			List rArr = (List) rhs;
 
+			Governor.allocate(lArr.list.size() + rArr.list.size());
 			List newList = new List(new ArrayList<Expr>());
 			newList.list.addAll(lArr.list);
 			newList.list.addAll(rArr.list);
@@ -496,4 +814,159 @@ public abstract class Atom {
 			throw new Exception(String.format("Can't coerce %s to a boolean", this.toString()));
 		}
 	}
+
+	/**
+	 * Convert the atom to the closest Java value. Numbers, booleans, characters
+	 * and strings become their boxed Java types, lists become Java lists and unit
+	 * becomes null. Lambdas and modules are returned as they are.
+	 *
+	 * @return The Java value.
+	 */
+	public Object toJava() {
+		if (this instanceof Integer) {
+			return ((Integer) this).val;
+		} else if (this instanceof Float) {
+			return ((Float) this).val;
+		} else if (this instanceof Bool) {
+			return ((Bool) this).val;
+		} else if (this instanceof Char) {
+			return ((Char) this).val;
+		} else if (this instanceof List && (this instanceof Str || (((List) this).isCharArray()
+				&& !((List) this).list.isEmpty()))) {
+			return ((List) this).getStringValue(false);
+		} else if (this instanceof List) {
+			ArrayList<Object> values = new ArrayList<>();
+			for (Expr e : ((List) this).list) {
+				values.add(((Expr.AtomicExpr) e).val.toJava());
+			}
+			return values;
+		} else if (this instanceof UnitBox) {
+			return ((UnitBox) this).getValue().toJava();
+		} else if (this instanceof Unit) {
+			return null;
+		}
+		return this;
+	}
+
+	/**
+	 * Convert a Java value to an atom, the opposite of toJava.
+	 *
+	 * @param value The Java value.
+	 * @return The atom.
+	 * @throws IllegalArgumentException If the value has no matching atom.
+	 */
+	public static Atom fromJava(Object value) {
+		if (value == null) {
+			return new Unit();
+		} else if (value instanceof Atom) {
+			return (Atom) value;
+		} else if (value instanceof java.lang.Integer || value instanceof Short || value instanceof Byte) {
+			return new Integer(((Number) value).intValue());
+		} else if (value instanceof Long && (long) value == ((Long) value).intValue()) {
+			return new Integer(((Long) value).intValue());
+		} else if (value instanceof Number) {
+			return new Float(((Number) value).doubleValue());
+		} else if (value instanceof Boolean) {
+			return new Bool((Boolean) value);
+		} else if (value instanceof Character) {
+			return new Char((Character) value);
+		} else if (value instanceof CharSequence) {
+			return new Str(value.toString());
+		} else if (value instanceof Iterable) {
+			ArrayList<Expr> list = new ArrayList<>();
+			for (Object element : (Iterable<?>) value) {
+				list.add(new Expr.AtomicExpr(fromJava(element)));
+			}
+			return new List(list);
+		} else if (value instanceof Object[]) {
+			return fromJava(Arrays.asList((Object[]) value));
+		}
+		throw new IllegalArgumentException(
+				String.format("Cannot convert %s to a RustScript value", value.getClass().getSimpleName()));
+	}
+
+	public static void testAtom() throws Exception {
+		Path dir = Files.createTempDirectory("rsc-test");
+		Interpreter i = new Interpreter();
+
+		{
+			// spawned lambdas run concurrently and communicate through channels
+			Atom[] awaited = i.evalAll("let square = fn (n) => n * n\nlet a = spawn(fn () => square(6))\nlet b = spawn(fn () => square(7))\nawait(a) + await(b)", dir.toString());
+			assert ((Atom.Integer) awaited[awaited.length - 1]).val == 85;
+			Atom[] received = i.evalAll("let c = channel(2)\nlet producer = spawn(fn () => loop (i = 0) while i < 5 => { send(c, i); let i = i + 1 })\nlet total = loop (sum = 0, n = 0) while n < 5 => { let sum = sum + receive(c); let n = n + 1 }\nawait(producer)\ntotal", dir.toString());
+			assert ((Atom.Integer) received[received.length - 1]).val == 10;
+			boolean spawnedFailure = false;
+			try {
+				i.eval("await(spawn(fn () => undefined_function(1)))");
+			} catch (Exception e) {
+				spawnedFailure = e.getMessage().contains("undefined_function");
+			}
+			assert spawnedFailure;
+		}
+
+		{
+			// spawned lambdas are stopped with the evaluation that spawned them
+			i.setLimits(new EvaluationLimits().setTimeoutMillis(300));
+			i.eval("let full = channel(4)");
+			boolean receiveAborted = false;
+			try {
+				i.evalAll("spawn(fn () => loop (i = 0) while true => { send(full, i); let i = i + 1 })\nreceive(channel(1))", dir.toString());
+			} catch (LimitExceededException e) {
+				receiveAborted = true;
+			}
+			assert receiveAborted;
+			Atom.Channel full = (Atom.Channel) i.eval("full");
+			Thread.sleep(100);
+			while (full.receive(0) != null) {
+			}
+			Thread.sleep(100);
+			assert full.receive(0) == null;
+			i.setLimits(null);
+
+			// also when the evaluation has no limits
+			i.evalAll("let unlimited = channel(4)\nspawn(fn () => loop (i = 0) while true => { send(unlimited, i); let i = i + 1 })", dir.toString());
+			Atom.Channel unlimited = (Atom.Channel) i.eval("unlimited");
+			Thread.sleep(100);
+			while (unlimited.receive(0) != null) {
+			}
+			Thread.sleep(100);
+			assert unlimited.receive(0) == null;
+		}
+
+		{
+			// isolates run a file in an interpreter of their own, and only exchange copies of values
+			Files.writeString(dir.resolve("worker.rs"), "let square = fn (n) => n * n\nlet work = fn (k) => if (k == 0) then (0) else { send(outbox, square(receive(inbox))); work(k - 1) }\nwork(3)\n\"done\"");
+			Atom[] squares = i.evalAll("let a = isolate(\"worker.rs\")\nlet b = isolate(\"worker.rs\")\nsend(a, 2); send(b, 3); send(a, 4); send(b, 5); send(a, 6); send(b, 7)\n[receive(a) + receive(b), receive(a) + receive(b), receive(a) + receive(b), await(a)]", dir.toString());
+			assert squares[squares.length - 1].toJava().equals(java.util.List.of(13, 41, 85, "done"));
+			boolean lambdaRejected = false;
+			try {
+				i.eval("send(a, fn (x) => x)");
+			} catch (Exception e) {
+				lambdaRejected = e.getMessage().startsWith("Cannot send Lambda");
+			}
+			assert lambdaRejected;
+		}
+
+		{
+			// isolates are stopped with the evaluation that started them
+			Files.writeString(dir.resolve("spinner.rs"), "loop (i = 0) while (true) => (i)");
+			i.setLimits(new EvaluationLimits().setTimeoutMillis(300));
+			boolean isolateAborted = false;
+			try {
+				i.evalAll("receive(isolate(\"spinner.rs\"))", dir.toString());
+			} catch (LimitExceededException e) {
+				isolateAborted = true;
+			}
+			assert isolateAborted;
+			i.evalAll("let spinner = isolate(\"spinner.rs\")", dir.toString());
+			i.setLimits(null);
+			boolean isolateStopped = false;
+			try {
+				i.eval("await(spinner)");
+			} catch (Exception e) {
+				isolateStopped = e.getMessage().contains("Cancelled");
+			}
+			assert isolateStopped;
+		}
+	}
 }
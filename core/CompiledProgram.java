@@ -0,0 +1,140 @@
+package core;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A CompiledProgram holds the parsed expressions of a set of script files,
+ * every file they import and all built-ins. It is the entry point of jars
+ * created by the ProgramCompiler, and runs the program without the tokenizer
+ * or parser.
+ */
+public class CompiledProgram {
+	static final String RESOURCE = "core/program.ast";
+
+	private final HashMap<String, String> kernelNames;
+	private final HashMap<String, ArrayList<Expr>> builtins;
+	private final LinkedHashMap<Path, ArrayList<Expr>> modules;
+	private final LinkedHashMap<Path, ArrayList<Expr>> files;
+
+	/**
+	 * @param kernelNames The kernel names the built-ins were parsed with.
+	 * @param builtins    The parsed definitions of each built-in.
+	 * @param modules     The parsed imported files by their absolute path.
+	 * @param files       The parsed script files to run, in order, by their
+	 *                    absolute path.
+	 */
+	public CompiledProgram(HashMap<String, String> kernelNames, HashMap<String, ArrayList<Expr>> builtins,
+			LinkedHashMap<Path, ArrayList<Expr>> modules, LinkedHashMap<Path, ArrayList<Expr>> files) {
+		this.kernelNames = kernelNames;
+		this.builtins = builtins;
+		this.modules = modules;
+		this.files = files;
+	}
+
+	public static void main(String[] args) {
+		CompiledProgram program;
+		try (InputStream in = CompiledProgram.class.getClassLoader().getResourceAsStream(RESOURCE)) {
+			if (in == null) {
+				System.out.println("No compiled program found.");
+				return;
+			}
+			program = read(new BufferedInputStream(in));
+		} catch (IOException e) {
+			System.out.println(e.getMessage());
+			return;
+		}
+		program.run();
+	}
+
+	/**
+	 * Run all script files one at a time, like the Runner does. The program stops
+	 * at the first file that fails.
+	 */
+	public void run() {
+		Interpreter.usePrecompiledBuiltins(kernelNames, builtins);
+		modules.forEach(ModuleCache::addCompiledModule);
+		Interpreter i;
+		try {
+			i = new Interpreter();
+		} catch (Exception e) {
+			System.out.println(e.getMessage());
+			return;
+		}
+		for (Map.Entry<Path, ArrayList<Expr>> file : files.entrySet()) {
+			try {
+				i.evalAll(file.getValue(), file.getKey().getParent().toString());
+			} catch (Exception e) {
+				System.out.println(e.getMessage());
+				return;
+			}
+			i.clear(); // New environment for each file.
+		}
+	}
+
+	public LinkedHashMap<Path, ArrayList<Expr>> getModules() {
+		return modules;
+	}
+
+	public LinkedHashMap<Path, ArrayList<Expr>> getFiles() {
+		return files;
+	}
+
+	public void write(OutputStream out) throws IOException {
+		AstWriter writer = new AstWriter(out);
+		writer.writeFormatHeader();
+		writer.writeInt(kernelNames.size());
+		for (Map.Entry<String, String> kernelName : kernelNames.entrySet()) {
+			writer.writeString(kernelName.getKey());
+			writer.writeString(kernelName.getValue());
+		}
+		writer.writeInt(builtins.size());
+		for (Map.Entry<String, ArrayList<Expr>> builtin : builtins.entrySet()) {
+			writer.writeString(builtin.getKey());
+			writer.writeExprs(builtin.getValue());
+		}
+		writeFiles(writer, modules);
+		writeFiles(writer, files);
+		writer.flush();
+	}
+
+	public static CompiledProgram read(InputStream in) throws IOException {
+		AstReader reader = new AstReader(in);
+		reader.readFormatHeader();
+		HashMap<String, String> kernelNames = new HashMap<>();
+		for (int n = reader.readInt(); n > 0; n--) {
+			kernelNames.put(reader.readString(), reader.readString());
+		}
+		HashMap<String, ArrayList<Expr>> builtins = new HashMap<>();
+		for (int n = reader.readInt(); n > 0; n--) {
+			builtins.put(reader.readString(), reader.readExprs());
+		}
+		LinkedHashMap<Path, ArrayList<Expr>> modules = readFiles(reader);
+		LinkedHashMap<Path, ArrayList<Expr>> files = readFiles(reader);
+		return new CompiledProgram(kernelNames, builtins, modules, files);
+	}
+
+	private static void writeFiles(AstWriter writer, LinkedHashMap<Path, ArrayList<Expr>> files) throws IOException {
+		writer.writeInt(files.size());
+		for (Map.Entry<Path, ArrayList<Expr>> file : files.entrySet()) {
+			writer.writeString(file.getKey().toString());
+			writer.writeExprs(file.getValue());
+		}
+	}
+
+	private static LinkedHashMap<Path, ArrayList<Expr>> readFiles(AstReader reader) throws IOException {
+		LinkedHashMap<Path, ArrayList<Expr>> files = new LinkedHashMap<>();
+		for (int n = reader.readInt(); n > 0; n--) {
+			files.put(Paths.get(reader.readString()), reader.readExprs());
+		}
+		return files;
+	}
+}
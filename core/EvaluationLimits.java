@@ -0,0 +1,118 @@
+package core;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Limits on the resources a single evaluation may use, so that a runaway
+ * script is stopped instead of running forever or filling the heap. A limit of
+ * zero means no limit. Evaluations exceeding a limit are aborted with a
+ * LimitExceededException, and the interpreter can be used again afterwards.
+ *
+ * <ul>
+ * <li>Fuel is the number of function calls and loop iterations.</li>
+ * <li>Depth is the number of nested function calls.</li>
+ * <li>List size is the length of any single list or string.</li>
+ * <li>Allocation is the total number of list and string elements
+ * created.</li>
+ * <li>Timeout is the wall-clock time of the evaluation, in milliseconds.</li>
+ * </ul>
+ *
+ * @see Interpreter#setLimits(EvaluationLimits)
+ */
+public class EvaluationLimits {
+	private long fuel;
+	private int maxDepth;
+	private int maxListSize;
+	private long maxAllocation;
+	private long timeoutMillis;
+
+	public long getFuel() {
+		return fuel;
+	}
+
+	public EvaluationLimits setFuel(long fuel) {
+		this.fuel = fuel;
+		return this;
+	}
+
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+
+	public EvaluationLimits setMaxDepth(int maxDepth) {
+		this.maxDepth = maxDepth;
+		return this;
+	}
+
+	public int getMaxListSize() {
+		return maxListSize;
+	}
+
+	public EvaluationLimits setMaxListSize(int maxListSize) {
+		this.maxListSize = maxListSize;
+		return this;
+	}
+
+	public long getMaxAllocation() {
+		return maxAllocation;
+	}
+
+	public EvaluationLimits setMaxAllocation(long maxAllocation) {
+		this.maxAllocation = maxAllocation;
+		return this;
+	}
+
+	public long getTimeoutMillis() {
+		return timeoutMillis;
+	}
+
+	public EvaluationLimits setTimeoutMillis(long timeoutMillis) {
+		this.timeoutMillis = timeoutMillis;
+		return this;
+	}
+
+	public String toString() {
+		return String.format(
+				"EvaluationLimits { fuel: %s, maxDepth: %s, maxListSize: %s, maxAllocation: %s, timeout: %sms }",
+				fuel, maxDepth, maxListSize, maxAllocation, timeoutMillis);
+	}
+
+	public static void testEvaluationLimits() throws Exception {
+		Interpreter i = new Interpreter();
+		i.eval("let ack = fn (m, n) => if (m == 0) then (n + 1) else (if (n == 0) then (ack(m - 1, 1)) else (ack(m - 1, ack(m, n - 1))))");
+
+		{
+			// evaluations exceeding their limits are aborted, and the interpreter can be used again
+			String[] runaway = { "ack(4, 2)", "range(0, 100)", "loop (i = 0) while (true) => (i)", "ack(3, 3)" };
+			EvaluationLimits[] limits = { new EvaluationLimits().setFuel(100000), new EvaluationLimits().setMaxListSize(50),
+					new EvaluationLimits().setTimeoutMillis(50), new EvaluationLimits().setMaxDepth(20) };
+			for (int n = 0; n < runaway.length; n++) {
+				i.setLimits(limits[n]);
+				boolean aborted = false;
+				try {
+					i.eval(runaway[n]);
+				} catch (LimitExceededException e) {
+					aborted = true;
+				}
+				assert aborted : runaway[n];
+				assert ((Atom.Integer) i.eval("ack(1, 1)")).val == 3;
+			}
+		}
+
+		{
+			// imported files are evaluated within the limits of the importer
+			Path dir = Files.createTempDirectory("rsc-test");
+			Files.writeString(dir.resolve("spin1.rs"), "loop (i = 0) while (true) => (i)\npub let a = 1");
+			Files.writeString(dir.resolve("spin2.rs"), "loop (i = 0) while (true) => (i)\npub let b = 2");
+			i.setLimits(new EvaluationLimits().setFuel(1000).setTimeoutMillis(200));
+			boolean importsAborted = false;
+			try {
+				i.evalAll("imp a from \"spin1.rs\"\nimp b from \"spin2.rs\"", dir.toString());
+			} catch (LimitExceededException e) {
+				importsAborted = true;
+			}
+			assert importsAborted;
+		}
+	}
+}
@@ -5,12 +5,19 @@ import java.io.FilenameFilter;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import core.Atom.Lambda.LambdaVariation;
 import core.util.EscapeSequence;
-import core.util.FileHelper;
+import core.util.Threads;
 
 /**
  * @author Mikail Khan <mikail@mikail-khan.com>, William Rågstad
@@ -63,8 +70,7 @@ public abstract class Expr {
 					return new Atom.Str(result.getStringValue(false));
 				return result;
 			} else if (val instanceof Atom.Lambda) {
-				((Atom.Lambda) val).setScope(scope);
-				return val;
+				return ((Atom.Lambda) val).bind(scope);
 			} else {
 				return val;
 			}
@@ -199,6 +205,86 @@ public abstract class Expr {
 		}
 	}
 
+	/**
+	 * A block whose expressions are evaluated at the same time, each in a scope
+	 * of its own, giving a list of their values. When one of them fails, the
+	 * others are cancelled at their next call or loop iteration, and the first
+	 * error is thrown.
+	 *
+	 * <p>
+	 * Each branch evaluates in a snapshot of the scope of the block, like a
+	 * spawned lambda, so a var or let in one branch is never seen by the other
+	 * branches, nor after the block. The first branch runs on the thread
+	 * evaluating the block, and the others on threads from
+	 * {@link Threads#branchExecutor()}.
+	 * </p>
+	 */
+	public static class ParBlockExpr extends Expr {
+		ArrayList<Expr> exprs;
+
+		public Atom eval(Scope scope) throws Exception {
+			AtomicBoolean cancelled = new AtomicBoolean();
+			AtomicReference<Throwable> error = new AtomicReference<>();
+			Atom[] results = new Atom[exprs.size()];
+			ArrayList<Runnable> branches = new ArrayList<>();
+			for (int i = 0; i < exprs.size(); i++) {
+				int branch = i;
+				Scope branchScope = scope.snapshot().deriveNew("Par"); // Copied before any branch starts
+				Governor fork = Governor.fork(cancelled, true); // Branches share the budget of the block
+				Runnable body = Threads.withRoutes(() -> {
+					if (cancelled.get()) {
+						return;
+					}
+					Governor outer = Governor.install(fork);
+					try {
+						results[branch] = exprs.get(branch).eval(branchScope);
+					} catch (Throwable e) {
+						if (error.compareAndSet(null, e)) {
+							cancelled.set(true);
+						}
+					} finally {
+						Governor.restore(outer);
+					}
+				});
+				branches.add(body);
+			}
+			ArrayList<Future<?>> started = new ArrayList<>();
+			for (int i = 1; i < branches.size(); i++) {
+				started.add(Threads.branchExecutor().submit(branches.get(i)));
+			}
+			if (!branches.isEmpty()) {
+				branches.get(0).run();
+			}
+			for (Future<?> branch : started) {
+				branch.get(); // Branches never throw, their errors are kept instead
+			}
+			Throwable e = error.get();
+			if (e instanceof Exception) {
+				throw (Exception) e;
+			} else if (e != null) {
+				throw (Error) e;
+			}
+			ArrayList<Expr> values = new ArrayList<>(results.length);
+			for (Atom result : results) {
+				values.add(new AtomicExpr(result));
+			}
+			return new Atom.List(values);
+		}
+
+		public ParBlockExpr(ArrayList<Expr> exprs, int startIndex, int endIndex) {
+			super(startIndex, endIndex);
+			this.exprs = exprs;
+		}
+
+		public ArrayList<Expr> getExprs() {
+			return exprs;
+		}
+
+		public String toString() {
+			return String.format("par {\n\t%s\n}", String.join(";\n\t", exprs.stream().map(Expr::toString).toList()));
+		}
+	}
+
 	public static class IfExpr extends Expr {
 		Expr cond;
 		Expr lhs;
@@ -232,6 +318,87 @@ public abstract class Expr {
 		}
 	}
 
+	/**
+	 * A loop with mutable accumulators, evaluated in a single scope without any
+	 * recursive lambda calls. The body rebinds the accumulators using let, and
+	 * the final value of the first accumulator is the result of the loop.
+	 *
+	 * <pre>
+	 * loop (acc = 0, i = 0) while i < 10 => { let acc = acc + i; let i = i + 1 }
+	 * </pre>
+	 *
+	 * A let of an accumulator anywhere in the body, also in a nested block, if or
+	 * match, rebinds the nearest binding of that name, which is the accumulator
+	 * unless a match pattern shadows it. Lets in the bodies of lambdas and in the
+	 * branches of par blocks bind in their own scope as usual.
+	 */
+	public static class LoopExpr extends Expr {
+		ArrayList<String> names;
+		ArrayList<Expr> inits;
+		Expr cond;
+		Expr body;
+
+		public Atom eval(Scope scope) throws Exception {
+			Scope loopScope = scope.deriveNew("Loop");
+			for (int i = 0; i < names.size(); i++) {
+				loopScope.set(names.get(i), inits.get(i).eval(loopScope));
+			}
+			// Evaluate the expressions of a block body directly in the loop scope, so
+			// that no new scope is derived for each iteration.
+			ArrayList<Expr> bodyExprs = body instanceof BlockExpr ? ((BlockExpr) body).exprs : null;
+			while (cond.eval(loopScope).isTruthy()) {
+				Governor.step();
+				if (bodyExprs != null) {
+					for (int i = 0; i < bodyExprs.size(); i++) {
+						bodyExprs.get(i).eval(loopScope);
+					}
+				} else {
+					body.eval(loopScope);
+				}
+			}
+			return loopScope.get(names.get(0));
+		}
+
+		public LoopExpr(ArrayList<String> names, ArrayList<Expr> inits, Expr cond, Expr body, int startIndex,
+				int endIndex) {
+			super(startIndex, endIndex);
+			this.names = names;
+			this.inits = inits;
+			this.cond = cond;
+			this.body = body;
+			markRebinds();
+		}
+
+		private void markRebinds() {
+			Set<Expr> inPar = Collections.newSetFromMap(new IdentityHashMap<>());
+			ImportSlicer.walk(body, expr -> {
+				if (expr instanceof ParBlockExpr) {
+					for (Expr branch : ((ParBlockExpr) expr).exprs) {
+						ImportSlicer.walk(branch, inPar::add, false);
+					}
+				}
+			}, false);
+			ImportSlicer.walk(body, expr -> {
+				if (expr instanceof AssignExpr && !inPar.contains(expr) && names.contains(((AssignExpr) expr).lhs)) {
+					((AssignExpr) expr).rebind = true;
+				}
+			}, false);
+		}
+
+		public LoopExpr(ArrayList<String> names, ArrayList<Expr> inits, Expr cond, Expr body) {
+			this(names, inits, cond, body, -1, -1);
+		}
+
+		public String toString() {
+			ArrayList<String> bindings = new ArrayList<>();
+			for (int i = 0; i < names.size(); i++) {
+				bindings.add(names.get(i) + " = " + inits.get(i).toString());
+			}
+			return String.format("loop (%s) while (%s) => (%s)", String.join(", ", bindings), cond.toString(),
+					body.toString());
+		}
+	}
+
 	public static class MatchExpr extends Expr {
 		Expr value;
 		ArrayList<MatchCaseExpr> cases;
@@ -293,7 +460,7 @@ public abstract class Expr {
 
 		public String toString() {
 			String constrainedPattern = String.format("%s", pattern);
-			if (constrainedPattern != null) {
+			if (constraint != null) {
 				constrainedPattern = String.format("%s and %s", pattern, constraint.toString());
 			}
 			return String.format("got (%s) then (%s)", constrainedPattern, clause.toString());
@@ -340,17 +507,16 @@ public abstract class Expr {
 		public Atom eval(Scope scope) throws Exception {
 			Path currentPath = Paths.get(scope.getSourceFileDirectory());
 			Path filePath2 = currentPath.resolve(fileName);
-			String source = FileHelper.readFile(filePath2);
-			Interpreter i = new Interpreter();
-			String p2 = filePath2.getParent().normalize().toAbsolutePath().toString();
-			i.evalAll(source, p2);
-			HashMap<String, Atom> importedExports = i.getGlobalScope().getExports();
+			HashMap<String, Atom> importedExports = scope.getModuleCache().load(filePath2, importList,
+					scope.getImportChain(), scope.isSpeculative());
 			for (String importName : importList) {
 				if (!importedExports.containsKey(importName)) {
 					throw new Exception("File " + fileName + " does not export " + importName + "!");
 				}
-				// Identifier is exported from the imported file
-				scope.set(importName, importedExports.get(importName));
+				// Identifier is exported from the imported file. Lambdas are copied, since
+				// the exports are shared by every importer and var adds variations in place
+				Atom value = importedExports.get(importName);
+				scope.set(importName, value instanceof Atom.Lambda ? ((Atom.Lambda) value).copy() : value);
 			}
 			return new Atom.Unit();
 		}
@@ -379,9 +545,15 @@ public abstract class Expr {
 
 			Atom.Lambda lambda = ((Atom.Lambda) scope.getByIdent(this.identifier, scope.getID()));
 			if (lambda != null) {
-				Scope lambdaScope = lambda.getScope();
+				// A lambda put into a scope without being evaluated has no scope of its own
+				Scope lambdaScope = lambda.getScope() != null ? lambda.getScope() : scope;
 				callScope = lambdaScope.deriveNew("Lambda call " + identifier.toString());
-				return evalLambda(lambda, scope, callScope);
+				Governor governor = Governor.enterCall();
+				try {
+					return evalLambda(lambda, scope, callScope);
+				} finally {
+					Governor.exitCall(governor);
+				}
 			}
 			if (this.identifier instanceof Atom.Ident) {
 				String progFuncName = ((Atom.Ident) this.identifier).name;
@@ -400,7 +572,7 @@ public abstract class Expr {
 			for (Expr expr : this.variables) {
 				args.add(expr.eval(evaledScope));
 			}
-			return pf.call(args);
+			return pf.call(args, evaledScope);
 		}
 
 		public Atom evalLambda(Atom.Lambda lambda, Scope lambdaScope, Scope callScope) throws Exception {
@@ -446,9 +618,21 @@ public abstract class Expr {
 	public static class AssignExpr extends Expr {
 		String lhs;
 		Expr rhs;
+		// Set for lets of loop accumulators, see LoopExpr
+		boolean rebind;
 
 		public Atom eval(Scope scope) throws Exception {
-			return new Atom.UnitBox(scope.set(lhs, rhs.eval(scope)));
+			Atom value = rhs.eval(scope);
+			Scope target = scope;
+			if (rebind) {
+				while (target.parentScope != null && !target.environment.containsKey(lhs)) {
+					target = target.parentScope;
+				}
+				if (!target.environment.containsKey(lhs)) {
+					target = scope;
+				}
+			}
+			return new Atom.UnitBox(target.set(lhs, value));
 		}
 
 		public AssignExpr(String lhs, Expr rhs, int startIndex, int endIndex) {
@@ -477,7 +661,7 @@ public abstract class Expr {
 			if (variationValue instanceof Atom.Lambda) {
 				if (scope.has(lhs)) {
 					// Add the new variation
-					Atom lambda = scope.get(lhs, scope.getID());
+					Atom lambda = scope.getMutable(lhs);
 					if (lambda instanceof Atom.Lambda) {
 						LambdaVariation lambdaVariation = ((Atom.Lambda) variationValue).variations.values().iterator()
 								.next();
@@ -592,4 +776,106 @@ public abstract class Expr {
 		e10.eval(newScope);
 		assert ((Atom.Integer) newScope.get("x")).val == 15 * 15;
 	}
+
+	public static void testLoopExpr() throws Exception {
+		Interpreter i = new Interpreter();
+
+		{
+			// the loop variables are rebound by the lets of the body
+			Atom sum = i.eval("loop (acc = 0, i = 0) while i < 1000 => { let acc = acc + i; let i = i + 1 }");
+			assert ((Atom.Integer) sum).val == 499500;
+		}
+
+		{
+			// loops in lambdas start from the initial values on every call
+			i.eval("let factorial = fn (n) => loop (acc = 1, i = 1) while i < n + 1 => { let acc = acc * i; let i = i + 1 }");
+			assert ((Atom.Integer) i.eval("factorial(5)")).val == 120;
+			assert ((Atom.Integer) i.eval("factorial(3)")).val == 6;
+		}
+
+		{
+			// lets in branches of the body rebind the loop variables too
+			Atom evens = i.eval("loop (n = 0, i = 0) while i < 10 => { if (i % 2 == 0) then { let n = n + 1 } else { n }; let i = i + 1 }");
+			assert ((Atom.Integer) evens).val == 5;
+			Atom steps = i.eval("loop (i = 0, s = 0) while i < 10 => { match i | x and x < 5 then { let i = i + 1 } | _ then { let i = i + 2 }; let s = s + 1 }");
+			assert ((Atom.Integer) steps).val == 11;
+			Atom shadowed = i.eval("loop (i = 0) while i < 3 => { let f = fn (i) => { let i = 100; i }; let i = i + 1 + f(0) - 100 }");
+			assert ((Atom.Integer) shadowed).val == 3;
+		}
+	}
+
+	public static void testParBlockExpr() throws Exception {
+		Interpreter i = new Interpreter();
+
+		{
+			// branches are evaluated concurrently, and the values kept in order
+			i.eval("let fib = fn (n) => if (n < 2) then (n) else (fib(n - 1) + fib(n - 2))");
+			i.eval("let pfib = fn (n) => if (n < 15) then (fib(n)) else (sum(par { pfib(n - 1); pfib(n - 2) }))");
+			assert ((Atom.Integer) i.eval("pfib(20)")).val == 6765;
+			assert i.eval("par { 1 + 1; \"a\" }").toJava().equals(List.of(2, "a"));
+		}
+
+		{
+			// a failing branch cancels the others
+			boolean branchFailed = false;
+			try {
+				i.eval("par { undefined_function(1); loop (i = 0) while true => { let i = i + 1 } }");
+			} catch (Exception e) {
+				branchFailed = e.getMessage().contains("undefined_function");
+			}
+			assert branchFailed;
+		}
+
+		{
+			// nested branches share the limits of the evaluation
+			i.setLimits(new EvaluationLimits().setFuel(1000).setMaxDepth(50));
+			i.eval("let f = fn (d) => if (d == 0) then (loop (i = 0) while i < 400 => { let i = i + 1 }) else (par { f(d - 1); f(d - 1) })");
+			boolean branchesLimited = false;
+			try {
+				i.eval("f(10)");
+			} catch (LimitExceededException e) {
+				branchesLimited = true;
+			}
+			assert branchesLimited;
+			i.setLimits(null);
+		}
+
+		{
+			// branches evaluate in snapshots of the scope, so their variations are their own
+			i.eval("let g = fn (a) => a");
+			Atom varied = i.eval("par { { var g = fn (a, b) => a + b; g(1, 2) }; { var g = fn (a, b) => a * b; g(3, 4) } }");
+			assert varied.toJava().equals(List.of(3, 12));
+			boolean variationKept = true;
+			try {
+				i.eval("g(1, 2)");
+			} catch (Exception e) {
+				variationKept = false;
+			}
+			assert !variationKept && ((Atom.Integer) i.eval("g(5)")).val == 5;
+		}
+
+		{
+			// branches recurse as deep as the thread evaluating the block
+			i.eval("let deep = fn (n) => if (n == 0) then (0) else (1 + deep(n - 1))");
+			Threads.setStackSize(64 * 1024 * 1024);
+			AtomicReference<Object> deep = new AtomicReference<>();
+			Thread main = new Thread(null, () -> {
+				try {
+					deep.set(i.eval("par { deep(30000); deep(30000) }").toJava());
+				} catch (Throwable e) {
+					deep.set(e);
+				}
+			}, "main", Threads.getStackSize());
+			main.start();
+			main.join();
+			Threads.setStackSize(0);
+			assert deep.get().equals(List.of(30000, 30000)) : deep.get();
+		}
+
+		{
+			// par blocks are written to and read from the cache
+			ArrayList<Expr> parsed = AstCache.parseExprs("par { 1; 2 }");
+			assert AstCache.parseExprs("par { 1; 2 }").toString().equals(parsed.toString());
+		}
+	}
 }
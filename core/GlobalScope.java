@@ -1,15 +1,42 @@
 package core;
 
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 public class GlobalScope extends Scope {
 	private String sourceFileDir;
+	private List<Path> importChain = List.of(); // Files being imported, leading up to this scope
+	private boolean speculative = false; // Loaded ahead of time, side effects are not allowed
+	private ModuleCache moduleCache = new ModuleCache(); // Imported files, shared with the files they import
+	private GlobalScope prototype; // Sealed scope with shared variables, looked up after this scope
 	private HashMap<String, ProgramFunction> program; // Built in system functions
+	private HashMap<String, LazyBinding> lazyBindings; // Variables evaluated on first lookup
 	private HashMap<String, Atom> exports; // Publicly exported variables
+	private HashMap<String, Atom> checkpointEnv; // Variables restored by rollback
+	private HashMap<String, Atom> checkpointExports;
+	private String checkpointSourceFileDir;
 
 	public GlobalScope() {
+		this(null);
+	}
+
+	/**
+	 * Create a global scope on top of a sealed prototype. All variables and
+	 * program functions of the prototype are visible from the new scope, while
+	 * every new variable is only set in the new scope.
+	 *
+	 * @param prototype The sealed global scope to share variables with.
+	 */
+	public GlobalScope(GlobalScope prototype) {
 		super("Global", null);
+		if (prototype != null && !prototype.isSealed()) {
+			throw new IllegalArgumentException("The prototype of a global scope must be sealed");
+		}
+		this.prototype = prototype;
 		this.program = new HashMap<String, ProgramFunction>();
+		this.lazyBindings = new HashMap<String, LazyBinding>();
 		this.exports = new HashMap<String, Atom>();
 	}
 
@@ -17,8 +44,97 @@ public class GlobalScope extends Scope {
 		this.program.put(name, function);
 	}
 
+	/**
+	 * Add a definition of a variable that is only parsed and evaluated the first
+	 * time the variable is looked up. Several definitions can be added for the
+	 * same variable, like a let followed by var expressions adding variations.
+	 *
+	 * @param name   Name of the variable.
+	 * @param source Source code of the definition.
+	 */
+	public void addLazyDefinition(String name, String source) {
+		this.lazyBindings.computeIfAbsent(name, LazyBinding::new).addDefinition(source);
+	}
+
+	/**
+	 * Add an already parsed definition of a variable that is only evaluated the
+	 * first time the variable is looked up.
+	 *
+	 * @param name       Name of the variable.
+	 * @param definition The parsed definition.
+	 */
+	public void addLazyDefinition(String name, Expr definition) {
+		this.lazyBindings.computeIfAbsent(name, LazyBinding::new).addDefinition(definition);
+	}
+
+	/**
+	 * Get the parsed definitions of all variables that are evaluated on first
+	 * lookup.
+	 *
+	 * @return The definitions of each variable, in the order they are evaluated.
+	 * @throws Exception If a definition cannot be parsed.
+	 */
+	public HashMap<String, ArrayList<Expr>> getLazyDefinitions() throws Exception {
+		HashMap<String, ArrayList<Expr>> definitions = new HashMap<>();
+		for (var binding : lazyBindings.entrySet()) {
+			definitions.put(binding.getKey(), binding.getValue().getDefinitions());
+		}
+		return definitions;
+	}
+
 	public ProgramFunction getProgramFunction(String name) {
-		return program.get(name);
+		ProgramFunction function = program.get(name);
+		if (function == null && prototype != null) {
+			return prototype.getProgramFunction(name);
+		}
+		return function;
+	}
+
+	public Atom get(String name, int sourceScopeId, boolean callFromChild) {
+		if (environment.containsKey(name)) {
+			return environment.get(name);
+		}
+		LazyBinding lazy = lazyBindings.get(name);
+		if (lazy != null) {
+			return lazy.resolve(this);
+		}
+		if (prototype != null) {
+			return prototype.get(name, sourceScopeId, callFromChild);
+		}
+		return null;
+	}
+
+	/**
+	 * Lambdas from the prototype are copied into this scope before being
+	 * modified, so that the prototype is never changed.
+	 */
+	public Atom getMutable(String name) {
+		Atom value = environment.get(name);
+		if (value instanceof Atom.Lambda && checkpointEnv != null && checkpointEnv.get(name) == value) {
+			// Copied so that rolling back restores the lambda as it was
+			Atom.Lambda copy = ((Atom.Lambda) value).copy();
+			environment.put(name, copy);
+			return copy;
+		}
+		if (environment.containsKey(name) || prototype == null) {
+			return get(name);
+		}
+		Atom shared = prototype.get(name);
+		if (shared instanceof Atom.Lambda) {
+			Atom.Lambda copy = ((Atom.Lambda) shared).copy();
+			environment.put(name, copy);
+			return copy;
+		}
+		return shared;
+	}
+
+	public boolean has(String name) {
+		return environment.containsKey(name) || lazyBindings.containsKey(name)
+				|| (prototype != null && prototype.has(name));
+	}
+
+	public GlobalScope getPrototype() {
+		return prototype;
 	}
 
 	public void setSourceFileDirectory(String sourceFileDir) {
@@ -29,6 +145,30 @@ public class GlobalScope extends Scope {
 		return sourceFileDir;
 	}
 
+	public void setImportChain(List<Path> importChain) {
+		this.importChain = importChain;
+	}
+
+	public List<Path> getImportChain() {
+		return importChain;
+	}
+
+	public void setModuleCache(ModuleCache moduleCache) {
+		this.moduleCache = moduleCache;
+	}
+
+	public ModuleCache getModuleCache() {
+		return moduleCache;
+	}
+
+	public void setSpeculative(boolean speculative) {
+		this.speculative = speculative;
+	}
+
+	public boolean isSpeculative() {
+		return speculative;
+	}
+
 	/**
 	 * Set a variable in the current scope.
 	 *
@@ -42,4 +182,61 @@ public class GlobalScope extends Scope {
 	public HashMap<String, Atom> getExports() {
 		return exports;
 	}
+
+	/**
+	 * Copy the global scope, sharing its prototype. Lambdas in the copy are
+	 * copied before variations are added to them, so that they are not changed
+	 * for this scope.
+	 */
+	public GlobalScope snapshot() {
+		if (sealed) {
+			return this;
+		}
+		GlobalScope copy = new GlobalScope(prototype);
+		copyEnv(copy);
+		copy.program = program;
+		copy.lazyBindings = lazyBindings;
+		copy.sourceFileDir = sourceFileDir;
+		copy.importChain = importChain;
+		copy.moduleCache = moduleCache;
+		copy.speculative = speculative;
+		copy.checkpoint();
+		return copy;
+	}
+
+	/**
+	 * Remember the current variables and exports, so that the scope can be
+	 * rolled back to them after running a program.
+	 */
+	public void checkpoint() {
+		checkpointEnv = new HashMap<>(environment);
+		checkpointExports = new HashMap<>(exports);
+		checkpointSourceFileDir = sourceFileDir;
+	}
+
+	/**
+	 * Discard every variable and export defined since the last checkpoint, or
+	 * all of them if there is no checkpoint. Files are imported anew afterwards.
+	 */
+	public void rollback() {
+		moduleCache = new ModuleCache();
+		if (checkpointEnv == null) {
+			clear();
+			return;
+		}
+		environment.clear();
+		environment.putAll(checkpointEnv);
+		exports.clear();
+		exports.putAll(checkpointExports);
+		sourceFileDir = checkpointSourceFileDir;
+	}
+
+	/**
+	 * Clear all variables and exports of this scope. The prototype is left
+	 * untouched.
+	 */
+	public void clear() {
+		super.clear();
+		exports.clear();
+	}
 }
@@ -0,0 +1,259 @@
+package core;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the resources used by the evaluation running on the current
+ * thread, and aborts it when it exceeds its limits. The evaluator reports
+ * calls, loop iterations and new lists through the static methods, which do
+ * nothing when the evaluation is not governed. Calls and loop iterations are
+ * also the safepoints where an evaluation run by a Scheduler yields.
+ *
+ * <p>
+ * Threads started by an evaluation, like the branches of a par block, spawned
+ * lambdas and the ones loading imports ahead of time, are governed by a fork
+ * of its governor. Forks draw from the
+ * same budget and deadline, and stop when the evaluation that started them
+ * ends.
+ * </p>
+ */
+final class Governor {
+	private static final ThreadLocal<Governor> current = new ThreadLocal<>();
+	private static final int CLOCK_INTERVAL = 1024; // Steps between checks of the deadline
+	private static final int SAFEPOINT_INTERVAL = 256; // Steps between checks of the time slice
+	private static final long WAIT_INTERVAL = 10; // Milliseconds between checks while waiting for another thread
+
+	/**
+	 * The resources of one evaluation, shared by every thread working on it.
+	 */
+	private static final class Budget {
+		private final EvaluationLimits limits;
+		private final long deadline;
+		private final AtomicLong fuel;
+		private final AtomicLong allocated = new AtomicLong();
+		private volatile boolean ended; // Set when the evaluation is over, stopping its remaining threads
+
+		private Budget(EvaluationLimits limits) {
+			this.limits = limits;
+			this.fuel = new AtomicLong(limits.getFuel());
+			this.deadline = limits.getTimeoutMillis() > 0 ? System.nanoTime() + limits.getTimeoutMillis() * 1_000_000
+					: 0;
+		}
+	}
+
+	private final Budget budget;
+	private final EvaluationLimits limits;
+	private final Scheduler.Task task; // The scheduled task being evaluated, or null
+	private final AtomicBoolean cancelled; // Set when the thread should stop, or null
+	private final Governor parent; // The governor this one was forked from, or null
+	private int depth;
+	private int untilClockCheck = CLOCK_INTERVAL;
+	private int untilSafepoint = SAFEPOINT_INTERVAL;
+
+	private Governor(Budget budget, Scheduler.Task task, AtomicBoolean cancelled, Governor parent, int depth) {
+		this.budget = budget;
+		this.limits = budget.limits;
+		this.task = task;
+		this.cancelled = cancelled;
+		this.parent = parent;
+		this.depth = depth;
+	}
+
+	/**
+	 * Start governing an evaluation on the current thread. Evaluations nested in
+	 * a governed one, like imports, share its limits. Evaluations without limits
+	 * are governed too, so that the threads they start are stopped when they end.
+	 *
+	 * @param limits The limits of the evaluation, or null for none.
+	 * @return The new governor, which must be passed to exit, or null if the
+	 *         thread is already governed.
+	 */
+	static Governor enter(EvaluationLimits limits) {
+		return enter(limits, null);
+	}
+
+	/**
+	 * Start governing an evaluation that is run by a scheduler.
+	 *
+	 * @param limits The limits of the evaluation, or null for none.
+	 * @param task   The task to yield at safepoints.
+	 * @return The new governor, or null if the thread is already governed.
+	 */
+	static Governor enter(EvaluationLimits limits, Scheduler.Task task) {
+		if (current.get() != null) {
+			return null;
+		}
+		Governor governor = new Governor(new Budget(limits != null ? limits : new EvaluationLimits()), task, null,
+				null, 0);
+		current.set(governor);
+		return governor;
+	}
+
+	/**
+	 * End the evaluation started by enter. Threads it started that are still
+	 * running are stopped at their next safepoint.
+	 */
+	static void exit(Governor governor) {
+		if (governor != null) {
+			governor.budget.ended = true;
+			current.remove();
+		}
+	}
+
+	/**
+	 * Create a governor for a thread started by the evaluation on the current
+	 * thread, sharing its budget. The fork must be installed on the new thread.
+	 *
+	 * @param cancelled Set when the new thread should stop, or null.
+	 * @param keepTask  Whether the new thread yields with the current thread when
+	 *                  a scheduler asks it to, which is only safe for threads that
+	 *                  are joined before the current thread goes on.
+	 * @return The fork, or null if the current thread is not running an
+	 *         evaluation and there is nothing to cancel.
+	 */
+	static Governor fork(AtomicBoolean cancelled, boolean keepTask) {
+		Governor parent = current.get();
+		if (parent == null) {
+			return cancelled != null ? new Governor(new Budget(new EvaluationLimits()), null, cancelled, null, 0) : null;
+		}
+		return new Governor(parent.budget, keepTask ? parent.task : null, cancelled, parent, parent.depth);
+	}
+
+	/**
+	 * Govern the current thread with a fork.
+	 *
+	 * @param fork The fork, or null to leave the thread ungoverned.
+	 * @return The governor of the thread before, which must be passed to restore.
+	 */
+	static Governor install(Governor fork) {
+		Governor outer = current.get();
+		if (fork != null) {
+			current.set(fork);
+		} else {
+			current.remove();
+		}
+		return outer;
+	}
+
+	static void restore(Governor outer) {
+		if (outer != null) {
+			current.set(outer);
+		} else {
+			current.remove();
+		}
+	}
+
+	/**
+	 * Get the limits of the evaluation running on the current thread, or null if
+	 * it is not governed.
+	 */
+	static EvaluationLimits currentLimits() {
+		Governor governor = current.get();
+		return governor != null ? governor.limits : null;
+	}
+
+	/**
+	 * Report a loop iteration.
+	 */
+	static void step() {
+		Governor governor = current.get();
+		if (governor != null) {
+			governor.consume();
+		}
+	}
+
+	/**
+	 * Report the start of a function call.
+	 *
+	 * @return The governor, which must be passed to exitCall when the call
+	 *         returns, or null if there are no limits.
+	 */
+	static Governor enterCall() {
+		Governor governor = current.get();
+		if (governor != null) {
+			governor.consume();
+			if (++governor.depth > governor.limits.getMaxDepth() && governor.limits.getMaxDepth() > 0) {
+				governor.depth--;
+				throw new LimitExceededException(
+						String.format("Exceeded the maximum call depth of %s", governor.limits.getMaxDepth()));
+			}
+		}
+		return governor;
+	}
+
+	static void exitCall(Governor governor) {
+		if (governor != null) {
+			governor.depth--;
+		}
+	}
+
+	/**
+	 * Report that the current thread is about to wait for another thread, which
+	 * must be done again after waiting for the returned time.
+	 *
+	 * @return How long to wait at most, in milliseconds.
+	 */
+	static long waiting() {
+		Governor governor = current.get();
+		if (governor != null) {
+			governor.checkStopped();
+			governor.checkDeadline();
+		}
+		return WAIT_INTERVAL;
+	}
+
+	/**
+	 * Report a new list or string.
+	 *
+	 * @param size The number of elements.
+	 */
+	static void allocate(int size) {
+		Governor governor = current.get();
+		if (governor == null) {
+			return;
+		}
+		EvaluationLimits limits = governor.limits;
+		if (limits.getMaxListSize() > 0 && size > limits.getMaxListSize()) {
+			throw new LimitExceededException(
+					String.format("Exceeded the maximum list size of %s with %s elements", limits.getMaxListSize(), size));
+		}
+		if (limits.getMaxAllocation() > 0 && governor.budget.allocated.addAndGet(size) > limits.getMaxAllocation()) {
+			throw new LimitExceededException(
+					String.format("Exceeded the allocation limit of %s elements", limits.getMaxAllocation()));
+		}
+	}
+
+	private void consume() {
+		checkStopped();
+		if (limits.getFuel() > 0 && budget.fuel.decrementAndGet() < 0) {
+			throw new LimitExceededException(String.format("Ran out of fuel after %s steps", limits.getFuel()));
+		}
+		if (task != null && --untilSafepoint <= 0) {
+			untilSafepoint = SAFEPOINT_INTERVAL;
+			task.safepoint();
+		}
+		if (budget.deadline != 0 && --untilClockCheck <= 0) {
+			untilClockCheck = CLOCK_INTERVAL;
+			checkDeadline();
+		}
+	}
+
+	private void checkStopped() {
+		for (Governor governor = this; governor != null; governor = governor.parent) {
+			if (governor.cancelled != null && governor.cancelled.get()) {
+				throw new CancellationException("Cancelled since another branch failed");
+			}
+		}
+		if (budget.ended) {
+			throw new CancellationException("Cancelled since the evaluation that started it has ended");
+		}
+	}
+
+	private void checkDeadline() {
+		if (budget.deadline != 0 && System.nanoTime() - budget.deadline > 0) {
+			throw new LimitExceededException(String.format("Exceeded the time limit of %sms", limits.getTimeoutMillis()));
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package core;
+
+import static core.ImageWriter.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * The ImageReader restores the state of a global scope written by the
+ * ImageWriter.
+ */
+public class ImageReader extends AstReader {
+	private final ArrayList<Object> objects = new ArrayList<>(); // Restored objects by handle
+	private GlobalScope prototype;
+
+	public ImageReader(InputStream in) {
+		super(in);
+	}
+
+	/**
+	 * Read the header of an image. The built-ins must be loaded with the returned
+	 * kernel names before the image is restored.
+	 *
+	 * @return The kernel names the built-ins were loaded with.
+	 * @throws IOException If the input is not an image of the current version.
+	 */
+	public HashMap<String, String> readImageHeader() throws IOException {
+		if (in.readInt() != IMAGE_MAGIC) {
+			throw new IOException("Not a RustScript image");
+		}
+		readFormatHeader();
+		HashMap<String, String> kernelNames = new HashMap<>();
+		for (int n = readInt(); n > 0; n--) {
+			kernelNames.put(readString(), readString());
+		}
+		return kernelNames;
+	}
+
+	/**
+	 * Restore the variables and exports of an image into a global scope.
+	 *
+	 * @param root The global scope to restore the image into.
+	 */
+	public void readImage(GlobalScope root) throws IOException {
+		prototype = root.getPrototype();
+		objects.add(root);
+		objects.add(prototype);
+		for (int handle = readInt(); handle != -1; handle = readInt()) {
+			Scope scope = (Scope) objects.get(handle);
+			readEnv(scope.getEnv());
+			if (scope instanceof GlobalScope) {
+				readEnv(((GlobalScope) scope).getExports());
+			} else if (scope instanceof ModuleScope) {
+				readEnv(((ModuleScope) scope).getPrivateEnv());
+			}
+		}
+	}
+
+	@Override
+	protected Atom readAtom(int tag) throws IOException {
+		if (tag == UNIT_BOX) {
+			return new Atom.UnitBox(readAtom());
+		} else if (tag == MODULE) {
+			int handle = readInt();
+			if (handle >= 0) {
+				return (Atom.Module) objects.get(handle);
+			}
+			int index = reserveHandle();
+			String name = readString();
+			ArrayList<Expr> body = readExprs();
+			try {
+				Atom.Module module = new Atom.Module(name, body, (ModuleScope) readScope());
+				objects.set(index, module);
+				return module;
+			} catch (IOException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new IOException(e.getMessage(), e);
+			}
+		}
+		return super.readAtom(tag);
+	}
+
+	@Override
+	protected Atom.Lambda readLambda() throws IOException {
+		int handle = readInt();
+		if (handle >= 0) {
+			return (Atom.Lambda) objects.get(handle);
+		}
+		// Registered before the variations are read, as they may refer to the lambda
+		Atom.Lambda lambda = new Atom.Lambda(null, new HashMap<>(), null);
+		objects.add(lambda);
+		Atom.Lambda read = super.readLambda();
+		lambda.variations.putAll(read.variations);
+		lambda.setName(read.getName());
+		lambda.setScope(readScope());
+		return lambda;
+	}
+
+	private Scope readScope() throws IOException {
+		int handle = readInt();
+		if (handle == -2) {
+			return null;
+		} else if (handle >= 0) {
+			return (Scope) objects.get(handle);
+		}
+		int index = reserveHandle();
+		int tag = in.readByte();
+		Scope scope;
+		if (tag == GLOBAL_SCOPE) {
+			GlobalScope globalScope = new GlobalScope(prototype);
+			globalScope.setSourceFileDirectory(readNullableString());
+			scope = globalScope;
+		} else if (tag == MODULE_SCOPE || tag == SCOPE) {
+			String name = readString();
+			Scope parent = readScope();
+			scope = tag == MODULE_SCOPE ? new ModuleScope(name, parent) : new Scope(name, parent);
+			scope.setName(name);
+		} else {
+			throw new IOException(String.format("Unknown scope tag %d", tag));
+		}
+		objects.set(index, scope);
+		return scope;
+	}
+
+	private void readEnv(HashMap<String, Atom> env) throws IOException {
+		for (int n = readInt(); n > 0; n--) {
+			env.put(readString(), readAtom());
+		}
+	}
+
+	private int reserveHandle() {
+		objects.add(null);
+		return objects.size() - 1;
+	}
+}
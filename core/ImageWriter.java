@@ -0,0 +1,148 @@
+package core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * The ImageWriter writes the evaluated state of a global scope, so that it can
+ * be restored by the ImageReader without evaluating anything again.
+ *
+ * <p>
+ * Scopes, lambdas and modules are written once and then referred to by a
+ * handle, so that closures sharing a scope still share it when they are
+ * restored. A scope is first written by its name and parent only, while its
+ * variables are written after all other values, as they may refer back to the
+ * scope. The prototype with the built-ins is never written, as it is created
+ * anew by every process.
+ * </p>
+ */
+public class ImageWriter extends AstWriter {
+	static final int IMAGE_MAGIC = 0x52534349; // "RSCI"
+
+	// Handles of the scopes every image refers to
+	static final int ROOT = 0, PROTOTYPE = 1;
+
+	// Atom tags, following the tags of the AST format
+	static final int UNIT_BOX = 20, MODULE = 21;
+
+	// Scope tags
+	static final int SCOPE = 1, MODULE_SCOPE = 2, GLOBAL_SCOPE = 3;
+
+	private final IdentityHashMap<Object, Integer> handles = new IdentityHashMap<>();
+	private final ArrayDeque<Scope> pendingScopes = new ArrayDeque<>(); // Scopes without written variables
+	private GlobalScope prototype;
+
+	public ImageWriter(OutputStream out) {
+		super(out);
+	}
+
+	/**
+	 * Write an image of a global scope.
+	 *
+	 * @param root        The global scope to write.
+	 * @param kernelNames The kernel names the built-ins were loaded with.
+	 */
+	public void writeImage(GlobalScope root, Map<String, String> kernelNames) throws IOException {
+		out.writeInt(IMAGE_MAGIC);
+		writeFormatHeader();
+		writeInt(kernelNames.size());
+		for (Map.Entry<String, String> kernelName : kernelNames.entrySet()) {
+			writeString(kernelName.getKey());
+			writeString(kernelName.getValue());
+		}
+		prototype = root.getPrototype();
+		handles.put(root, ROOT);
+		handles.put(prototype, PROTOTYPE);
+		pendingScopes.add(root);
+		while (!pendingScopes.isEmpty()) {
+			Scope scope = pendingScopes.poll();
+			writeInt(handles.get(scope));
+			writeEnv(scope.getEnv());
+			if (scope instanceof GlobalScope) {
+				writeEnv(((GlobalScope) scope).getExports());
+			} else if (scope instanceof ModuleScope) {
+				writeEnv(((ModuleScope) scope).getPrivateEnv());
+			}
+		}
+		writeInt(-1);
+		flush();
+	}
+
+	@Override
+	public void writeAtom(Atom atom) throws IOException {
+		if (atom instanceof Atom.UnitBox) {
+			out.writeByte(UNIT_BOX);
+			writeAtom(((Atom.UnitBox) atom).getValue());
+		} else if (atom instanceof Atom.Module) {
+			out.writeByte(MODULE);
+			Atom.Module module = (Atom.Module) atom;
+			if (writeHandle(module)) {
+				writeString(module.getName());
+				writeExprs(module.getBody());
+				writeScope(module.getModuleScope());
+			}
+		} else {
+			super.writeAtom(atom);
+		}
+	}
+
+	@Override
+	protected void writeLambda(Atom.Lambda lambda) throws IOException {
+		if (writeHandle(lambda)) {
+			super.writeLambda(lambda);
+			writeScope(lambda.getScope());
+		}
+	}
+
+	private void writeScope(Scope scope) throws IOException {
+		if (scope == null) {
+			writeInt(-2);
+			return;
+		}
+		if (!writeHandle(scope)) {
+			return;
+		}
+		if (scope instanceof GlobalScope) {
+			if (((GlobalScope) scope).getPrototype() != prototype) {
+				throw new IOException("Cannot write a global scope that is not based on the built-ins");
+			}
+			out.writeByte(GLOBAL_SCOPE);
+			writeNullableString(scope.getSourceFileDirectory());
+		} else {
+			out.writeByte(scope instanceof ModuleScope ? MODULE_SCOPE : SCOPE);
+			writeString(scope.getName());
+			writeScope(scope.parentScope);
+		}
+		pendingScopes.add(scope);
+	}
+
+	private void writeEnv(HashMap<String, Atom> env) throws IOException {
+		writeInt(env.size());
+		for (Map.Entry<String, Atom> variable : env.entrySet()) {
+			writeString(variable.getKey());
+			writeAtom(variable.getValue());
+		}
+	}
+
+	/**
+	 * Write the handle of an object that has already been written, or mark it as
+	 * written.
+	 *
+	 * @return True if the object has not been written before and must be written
+	 *         after the handle.
+	 */
+	private boolean writeHandle(Object object) throws IOException {
+		Integer handle = handles.get(object);
+		if (handle != null) {
+			writeInt(handle);
+			return false;
+		}
+		handles.put(object, handles.size());
+		writeInt(-1);
+		return true;
+	}
+}
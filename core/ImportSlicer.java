@@ -0,0 +1,344 @@
+package core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * The ImportSlicer builds a dependency graph of the top-level definitions in an
+ * imported file, so that only the definitions needed by the imported names have
+ * to be evaluated.
+ *
+ * <p>
+ * Slicing is only safe when evaluating a definition cannot have any side
+ * effects. If the file contains any other top-level expression than let, var,
+ * mod, pub or imp, or if any definition might print, read input, start
+ * concurrent work or call a function of unknown effects while being evaluated,
+ * the whole file must be evaluated instead. Imports are always evaluated, and
+ * the imported names count as functions of unknown effects.
+ * </p>
+ */
+class ImportSlicer {
+	/**
+	 * Built-ins with side effects. A definition that calls any of these, directly
+	 * or through other definitions, is never sliced away.
+	 */
+	private static final Set<String> SIDE_EFFECTS = Set.of("print", "println", "input", "spawn", "await", "channel",
+			"send", "receive", "isolate");
+
+	/**
+	 * Select the top-level expressions needed to define the given names.
+	 *
+	 * @param exprs    The top-level expressions of a file.
+	 * @param names    The names to import from the file.
+	 * @param builtins The scope the file is evaluated in, which knows the
+	 *                 built-ins.
+	 * @return The needed expressions in their original order, or null if the
+	 *         whole file must be evaluated.
+	 */
+	static ArrayList<Expr> slice(List<Expr> exprs, Collection<String> names, Scope builtins) {
+		// Which top-level expressions define each name
+		HashMap<String, ArrayList<Integer>> definitions = new HashMap<>();
+		boolean[] selected = new boolean[exprs.size()];
+		HashSet<String> imported = new HashSet<>();
+		for (int i = 0; i < exprs.size(); i++) {
+			Expr expr = exprs.get(i);
+			if (isNoOp(expr)) {
+				continue;
+			}
+			if (expr instanceof Expr.ImportExpr) {
+				// Loading another file is a side effect of its own
+				imported.addAll(((Expr.ImportExpr) expr).importList);
+				selected[i] = true;
+				continue;
+			}
+			List<String> defined = definedNames(expr);
+			if (defined == null) {
+				return null; // Top-level expression with possible side effects
+			}
+			for (String name : defined) {
+				definitions.computeIfAbsent(name, n -> new ArrayList<>()).add(i);
+			}
+		}
+
+		// Find all definitions that might have side effects when they are used
+		HashMap<String, HashSet<String>> references = new HashMap<>();
+		for (var definition : definitions.entrySet()) {
+			HashSet<String> refs = new HashSet<>();
+			for (int i : definition.getValue()) {
+				collectReferences(exprs.get(i), refs, true);
+			}
+			references.put(definition.getKey(), refs);
+		}
+		HashSet<String> effectful = new HashSet<>(SIDE_EFFECTS);
+		effectful.addAll(imported);
+		for (var definition : definitions.entrySet()) {
+			for (int i : definition.getValue()) {
+				if (callsUnknown(exprs.get(i), definitions.keySet(), imported, builtins, true)) {
+					effectful.add(definition.getKey());
+				}
+			}
+		}
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (var definition : references.entrySet()) {
+				if (!effectful.contains(definition.getKey()) && intersects(definition.getValue(), effectful)) {
+					effectful.add(definition.getKey());
+					changed = true;
+				}
+			}
+		}
+		// Any definition that uses them while being evaluated makes slicing unsafe
+		for (int i = 0; i < exprs.size(); i++) {
+			Expr evaluated = evaluatedPart(exprs.get(i));
+			if (evaluated == null || selected[i]) {
+				continue;
+			}
+			HashSet<String> refs = new HashSet<>();
+			collectReferences(evaluated, refs, true);
+			if (intersects(refs, effectful)
+					|| callsUnknown(evaluated, definitions.keySet(), imported, builtins, false)) {
+				return null;
+			}
+		}
+
+		// Select the transitive closure of the requested names
+		HashSet<String> visited = new HashSet<>();
+		ArrayDeque<String> queue = new ArrayDeque<>(names);
+		while (!queue.isEmpty()) {
+			String name = queue.poll();
+			if (!visited.add(name) || !definitions.containsKey(name)) {
+				continue;
+			}
+			for (int i : definitions.get(name)) {
+				selected[i] = true;
+			}
+			queue.addAll(references.get(name));
+		}
+		ArrayList<Expr> slice = new ArrayList<>();
+		for (int i = 0; i < exprs.size(); i++) {
+			if (selected[i]) {
+				slice.add(exprs.get(i));
+			}
+		}
+		return slice;
+	}
+
+	private static boolean isNoOp(Expr expr) {
+		// Empty lines are parsed as unit expressions
+		return expr instanceof Expr.AtomicExpr && ((Expr.AtomicExpr) expr).val instanceof Atom.Unit;
+	}
+
+	private static boolean intersects(Set<String> a, Set<String> b) {
+		for (String name : a) {
+			if (b.contains(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get the names defined by a top-level expression.
+	 *
+	 * @return The defined names, or null if the expression is not a definition.
+	 */
+	private static List<String> definedNames(Expr expr) {
+		if (expr instanceof Expr.PublicExpr) {
+			Expr inner = ((Expr.PublicExpr) expr).expr;
+			if (inner instanceof Expr.AssignExpr || inner instanceof Expr.ModuleExpr) {
+				return definedNames(inner);
+			}
+			return null;
+		} else if (expr instanceof Expr.AssignExpr) {
+			return List.of(((Expr.AssignExpr) expr).lhs);
+		} else if (expr instanceof Expr.VariationExpr) {
+			return List.of(((Expr.VariationExpr) expr).lhs);
+		} else if (expr instanceof Expr.ModuleExpr) {
+			return List.of(((Expr.ModuleExpr) expr).name);
+		}
+		return null;
+	}
+
+	/**
+	 * Get the part of a top-level definition that is evaluated when the
+	 * definition is. Lambdas passed to a call might be called right away, so
+	 * their bodies are part of it, but the body of a defined lambda is not.
+	 *
+	 * @return The evaluated expression, or null if nothing is evaluated.
+	 */
+	private static Expr evaluatedPart(Expr expr) {
+		if (expr instanceof Expr.PublicExpr) {
+			return evaluatedPart(((Expr.PublicExpr) expr).expr);
+		}
+		Expr rhs = null;
+		if (expr instanceof Expr.AssignExpr) {
+			rhs = ((Expr.AssignExpr) expr).rhs;
+		} else if (expr instanceof Expr.VariationExpr) {
+			rhs = ((Expr.VariationExpr) expr).rhs;
+		} else if (expr instanceof Expr.ModuleExpr) {
+			ArrayList<Expr> evaluated = new ArrayList<>();
+			for (Expr e : ((Expr.ModuleExpr) expr).body) {
+				Expr part = evaluatedPart(e);
+				if (part != null) {
+					evaluated.add(part);
+				}
+			}
+			return new Expr.BlockExpr(evaluated);
+		} else {
+			return expr;
+		}
+		boolean lambda = rhs instanceof Expr.AtomicExpr && ((Expr.AtomicExpr) rhs).val instanceof Atom.Lambda;
+		return lambda ? null : rhs;
+	}
+
+	/**
+	 * Check if an expression calls a function that is neither defined in the
+	 * file, imported, a built-in nor bound within the expression itself, like an
+	 * argument of a lambda. Such a call might have any effect.
+	 */
+	private static boolean callsUnknown(Expr expr, Set<String> defined, Set<String> imported, Scope builtins,
+			boolean includeLambdaBodies) {
+		HashSet<String> callees = new HashSet<>();
+		HashSet<String> bound = new HashSet<>();
+		walk(expr, e -> {
+			if (e instanceof Expr.LambdaCall) {
+				addReference(((Expr.LambdaCall) e).identifier, callees);
+			} else if (e instanceof Expr.AtomicExpr && ((Expr.AtomicExpr) e).val instanceof Atom.Lambda) {
+				for (Atom.Lambda.LambdaVariation variation : ((Atom.Lambda) ((Expr.AtomicExpr) e).val).variations
+						.values()) {
+					bound.addAll(variation.argNames);
+				}
+			} else if (e instanceof Expr.MatchExpr) {
+				for (Expr.MatchCaseExpr matchCase : ((Expr.MatchExpr) e).cases) {
+					bound.add(matchCase.pattern);
+				}
+			} else if (e instanceof Expr.LoopExpr) {
+				bound.addAll(((Expr.LoopExpr) e).names);
+			} else if (e instanceof Expr.AssignExpr) {
+				bound.add(((Expr.AssignExpr) e).lhs);
+			} else if (e instanceof Expr.VariationExpr) {
+				bound.add(((Expr.VariationExpr) e).lhs);
+			}
+		}, includeLambdaBodies);
+		for (String callee : callees) {
+			if (!defined.contains(callee) && !imported.contains(callee) && !bound.contains(callee)
+					&& builtins.getProgramFunction(callee) == null && !builtins.has(callee)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Collect every name an expression refers to. Names bound by lambda arguments
+	 * or match patterns are included too, which only makes the slice larger.
+	 *
+	 * @param expr                 The expression to search.
+	 * @param references           The set to add the names to.
+	 * @param includeLambdaBodies  Whether to include names that are only used
+	 *                             when a lambda is called.
+	 */
+	private static void collectReferences(Expr expr, Set<String> references, boolean includeLambdaBodies) {
+		walk(expr, e -> {
+			if (e instanceof Expr.AtomicExpr) {
+				addReference(((Expr.AtomicExpr) e).val, references);
+			} else if (e instanceof Expr.LambdaCall) {
+				addReference(((Expr.LambdaCall) e).identifier, references);
+			}
+		}, includeLambdaBodies);
+	}
+
+	private static void addReference(Atom atom, Set<String> references) {
+		if (atom instanceof Atom.Ident) {
+			references.add(((Atom.Ident) atom).name);
+		} else if (atom instanceof Atom.IdentList) {
+			references.add(((Atom.IdentList) atom).identifiers.get(0));
+		}
+	}
+
+	/**
+	 * Visit an expression and every expression nested in it, including the
+	 * elements of list literals. Parents are visited before their children.
+	 *
+	 * @param expr                The expression to walk, or null.
+	 * @param visitor             Called for every expression.
+	 * @param includeLambdaBodies Whether to walk into the bodies of lambdas.
+	 */
+	static void walk(Expr expr, Consumer<Expr> visitor, boolean includeLambdaBodies) {
+		if (expr == null) {
+			return;
+		}
+		visitor.accept(expr);
+		if (expr instanceof Expr.AtomicExpr) {
+			walk(((Expr.AtomicExpr) expr).val, visitor, includeLambdaBodies);
+		} else if (expr instanceof Expr.PrefixExpr) {
+			walk(((Expr.PrefixExpr) expr).rhs, visitor, includeLambdaBodies);
+		} else if (expr instanceof Expr.BinaryExpr) {
+			Expr.BinaryExpr e = (Expr.BinaryExpr) expr;
+			walk(e.lhs, visitor, includeLambdaBodies);
+			walk(e.rhs, visitor, includeLambdaBodies);
+		} else if (expr instanceof Expr.BlockExpr) {
+			for (Expr e : ((Expr.BlockExpr) expr).exprs) {
+				walk(e, visitor, includeLambdaBodies);
+			}
+		} else if (expr instanceof Expr.ParBlockExpr) {
+			for (Expr e : ((Expr.ParBlockExpr) expr).exprs) {
+				walk(e, visitor, includeLambdaBodies);
+			}
+		} else if (expr instanceof Expr.IfExpr) {
+			Expr.IfExpr e = (Expr.IfExpr) expr;
+			walk(e.cond, visitor, includeLambdaBodies);
+			walk(e.lhs, visitor, includeLambdaBodies);
+			walk(e.rhs, visitor, includeLambdaBodies);
+		} else if (expr instanceof Expr.LoopExpr) {
+			Expr.LoopExpr e = (Expr.LoopExpr) expr;
+			for (Expr init : e.inits) {
+				walk(init, visitor, includeLambdaBodies);
+			}
+			walk(e.cond, visitor, includeLambdaBodies);
+			walk(e.body, visitor, includeLambdaBodies);
+		} else if (expr instanceof Expr.MatchExpr) {
+			Expr.MatchExpr e = (Expr.MatchExpr) expr;
+			walk(e.value, visitor, includeLambdaBodies);
+			for (Expr.MatchCaseExpr matchCase : e.cases) {
+				walk(matchCase.constraint, visitor, includeLambdaBodies);
+				walk(matchCase.clause, visitor, includeLambdaBodies);
+			}
+		} else if (expr instanceof Expr.ModuleExpr) {
+			for (Expr e : ((Expr.ModuleExpr) expr).body) {
+				walk(e, visitor, includeLambdaBodies);
+			}
+		} else if (expr instanceof Expr.LambdaCall) {
+			Expr.LambdaCall e = (Expr.LambdaCall) expr;
+			walk(e.identifier, visitor, includeLambdaBodies);
+			for (Expr variable : e.variables) {
+				walk(variable, visitor, includeLambdaBodies);
+			}
+		} else if (expr instanceof Expr.AssignExpr) {
+			walk(((Expr.AssignExpr) expr).rhs, visitor, includeLambdaBodies);
+		} else if (expr instanceof Expr.VariationExpr) {
+			walk(((Expr.VariationExpr) expr).rhs, visitor, includeLambdaBodies);
+		} else if (expr instanceof Expr.PublicExpr) {
+			walk(((Expr.PublicExpr) expr).expr, visitor, includeLambdaBodies);
+		}
+	}
+
+	private static void walk(Atom atom, Consumer<Expr> visitor, boolean includeLambdaBodies) {
+		if (atom instanceof Atom.List && !(atom instanceof Atom.Str)) {
+			for (Expr e : ((Atom.List) atom).list) {
+				walk(e, visitor, includeLambdaBodies);
+			}
+		} else if (atom instanceof Atom.Lambda && includeLambdaBodies) {
+			for (Atom.Lambda.LambdaVariation variation : ((Atom.Lambda) atom).variations.values()) {
+				walk(variation.expr, visitor, true);
+			}
+		}
+	}
+}
@@ -1,8 +1,22 @@
 package core;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import core.util.FileHelper;
+import core.util.Threads;
 
 /**
  * @author Mikail Khan <mikail@mikail-khan.com>, William Rågstad
@@ -12,19 +26,110 @@ import java.util.Scanner;
  *         with complicated scoping and whatnot. This keeps the interpreter very
  *         simple.
  *
+ *         An interpreter must only be used by one thread at a time. Parsed
+ *         programs, the built-ins and the exports of imported files are never
+ *         changed by evaluation and can be shared by any number of
+ *         interpreters. Exported functions are copied into every importer, so
+ *         that var only adds variations to the copy. To
+ *         evaluate on many threads with the same definitions, evaluate them
+ *         once and give every thread a fork of the interpreter.
+ *
  */
 public class Interpreter {
+	public static final String VERSION = "2.3.0"; // Version of the language, shown by the CLI and the script engine
+	private static GlobalScope prototype; // Global scope with all built-ins loaded, shared by all interpreters
+	private static HashMap<String, String> kernelNames = new HashMap<>(); // Kernel name of each program function
+	private static Map<String, ArrayList<Expr>> precompiledBuiltins; // Parsed built-ins of a compiled program
 	private GlobalScope globalScope;
+	private EvaluationLimits limits; // Limits of every evaluation, or null for none
 
 	public Interpreter() throws Exception {
-		globalScope = new GlobalScope();
-		// load built-ins
-		loadProgram();
+		globalScope = new GlobalScope(getPrototype());
+	}
+
+	private Interpreter(GlobalScope globalScope) {
+		this.globalScope = globalScope;
+	}
+
+	/**
+	 * Get the sealed global scope with all built-ins loaded. It is only built
+	 * once, the first time an interpreter is created, and every interpreter
+	 * then uses it as the prototype of its own global scope.
+	 *
+	 * @return The shared built-ins scope.
+	 * @throws Exception If the built-ins failed to load.
+	 */
+	private static synchronized GlobalScope getPrototype() throws Exception {
+		if (prototype == null) {
+			Interpreter builtins = new Interpreter(new GlobalScope());
+			builtins.loadProgram();
+			if (precompiledBuiltins != null) {
+				precompiledBuiltins.forEach((name, definitions) -> definitions
+						.forEach(definition -> builtins.globalScope.addLazyDefinition(name, definition)));
+			}
+			builtins.globalScope.seal();
+			prototype = builtins.globalScope;
+		}
+		return prototype;
+	}
+
+	/**
+	 * Use built-ins that were parsed when a program was compiled, so that they
+	 * don't have to be parsed again. Must be called before the first interpreter
+	 * is created.
+	 *
+	 * @param kernelNames The kernel names the built-ins were parsed with.
+	 * @param builtins    The parsed definitions of each built-in.
+	 * @see #getKernelNames()
+	 * @see #getBuiltinDefinitions()
+	 */
+	public static synchronized void usePrecompiledBuiltins(Map<String, String> kernelNames,
+			Map<String, ArrayList<Expr>> builtins) {
+		if (prototype != null) {
+			throw new IllegalStateException("The built-ins are already loaded");
+		}
+		Interpreter.kernelNames = new HashMap<>(kernelNames);
+		Interpreter.precompiledBuiltins = builtins;
+	}
+
+	/**
+	 * Load the built-ins with the given kernel names, so that built-ins saved
+	 * with them can be called. Does nothing if the built-ins are already loaded
+	 * with the same names.
+	 *
+	 * @param kernelNames The kernel name of each program function.
+	 * @throws IllegalStateException If the built-ins are already loaded with other
+	 *                               names.
+	 */
+	public static synchronized void useKernelNames(Map<String, String> kernelNames) {
+		if (prototype == null) {
+			Interpreter.kernelNames = new HashMap<>(kernelNames);
+		} else if (!Interpreter.kernelNames.equals(kernelNames)) {
+			throw new IllegalStateException("The built-ins are already loaded with other kernel names");
+		}
+	}
+
+	/**
+	 * Get the kernel names of the program functions, which are referred to by the
+	 * built-in definitions.
+	 */
+	public static synchronized HashMap<String, String> getKernelNames() throws Exception {
+		getPrototype();
+		return new HashMap<>(kernelNames);
+	}
+
+	/**
+	 * Get the parsed definitions of all built-ins.
+	 */
+	public static synchronized HashMap<String, ArrayList<Expr>> getBuiltinDefinitions() throws Exception {
+		return getPrototype().getLazyDefinitions();
 	}
 
 	private String GenerateKernelName(String functionName) {
-		int kid = (int) (Math.random() * 1000);
-		return "kernel" + kid + "_" + functionName;
+		return kernelNames.computeIfAbsent(functionName, name -> {
+			int kid = (int) (Math.random() * 1000);
+			return "kernel" + kid + "_" + name;
+		});
 	}
 
 	private void loadProgram() throws Exception {
@@ -52,6 +157,11 @@ public class Interpreter {
 		String substr = GenerateKernelName("substr");
 		String parseInt = GenerateKernelName("parseInt");
 		String parseBool = GenerateKernelName("parseBool");
+		String spawn = GenerateKernelName("spawn");
+		String await = GenerateKernelName("await");
+		String channel = GenerateKernelName("channel");
+		String send = GenerateKernelName("send");
+		String receive = GenerateKernelName("receive");
 		// TODO: Allow print functions to accept any number of arguments
 		globalScope.addProgramFunction(print, (args) -> {
 			expectArgs.apply(args, 1, "print");
@@ -138,34 +248,103 @@ public class Interpreter {
 			else
 				return new Atom.Unit();
 		});
-		// wrappers for built-ins
-		execute("let print = fn(s) => " + print + "(str(s))");
-		execute("var print = fn(s1, s2) => print(str(s1) + \" \" + s2)");
-		execute("var print = fn(s1, s2, s3) => print(str(s1) + \" \" + s2, s3)");
-		execute("let println = fn(s) => " + print + "(str(s) + '\\n')");
-		execute("var println = fn(s1, s2) => println(str(s1) + \" \" + s2)");
-		execute("var println = fn(s1, s2, s3) => println(str(s1) + \" \" + s2, s3)");
-		execute("let input = fn(s) => " + input + "(s)");
-		execute("let typeof = fn(e) => " + typeof + "(e)");
-		execute("let upper = fn(s) => " + upper + "(s)");
-		execute("let lower = fn(s) => " + lower + "(s)");
-		execute("let round = fn(s) => " + round + "(s)");
-		execute("let floor = fn(s) => " + floor + "(s)");
-		execute("let ceil = fn(s) => " + ceil + "(s)");
-		execute("let str = fn(obj) => \"\" + obj");
-		execute("let substr = fn(s, b, e) => " + substr + "(s, b, e)");
-		execute("let parseInt = fn(s) => " + parseInt + "(s)");
-		execute("let parseBool = fn(s) => " + parseBool + "(s)");
+		globalScope.addProgramFunction(spawn, (args) -> {
+			expectArgs.apply(args, 1, "spawn");
+			expectType.apply(args.get(0), Atom.Lambda.class, "spawn");
+			return Atom.Future.spawn((Atom.Lambda) args.get(0));
+		});
+		globalScope.addProgramFunction(await, (args) -> {
+			expectArgs.apply(args, 1, "await");
+			if (args.get(0) instanceof Atom.Isolate)
+				return ((Atom.Isolate) args.get(0)).await();
+			expectType.apply(args.get(0), Atom.Future.class, "await");
+			return ((Atom.Future) args.get(0)).await();
+		});
+		globalScope.addProgramFunction(channel, (args) -> {
+			expectArgs.apply(args, 1, "channel");
+			expectType.apply(args.get(0), Atom.Integer.class, "channel");
+			int capacity = ((Atom.Integer) args.get(0)).val;
+			if (capacity < 1)
+				throw new Exception("The capacity of a channel must be at least 1");
+			return new Atom.Channel(capacity);
+		});
+		globalScope.addProgramFunction(send, (args) -> {
+			expectArgs.apply(args, 2, "send");
+			if (args.get(0) instanceof Atom.Isolate) {
+				((Atom.Isolate) args.get(0)).send(args.get(1));
+				return new Atom.Unit();
+			}
+			expectType.apply(args.get(0), Atom.Channel.class, "send");
+			((Atom.Channel) args.get(0)).send(args.get(1));
+			return new Atom.Unit();
+		});
+		globalScope.addProgramFunction(receive, (args) -> {
+			expectArgs.apply(args, 1, "receive");
+			if (args.get(0) instanceof Atom.Isolate)
+				return ((Atom.Isolate) args.get(0)).receive();
+			expectType.apply(args.get(0), Atom.Channel.class, "receive");
+			return ((Atom.Channel) args.get(0)).receive();
+		});
+		// Called without a wrapper, so that paths are resolved from the file of the caller
+		globalScope.addProgramFunction("isolate", new ProgramFunction() {
+			public Atom call(ArrayList<Atom> args) throws Exception {
+				return call(args, globalScope);
+			}
+
+			public Atom call(ArrayList<Atom> args, Scope scope) throws Exception {
+				expectArgs.apply(args, 1, "isolate");
+				expectType.apply(args.get(0), Atom.Str.class, "isolate");
+				String directory = scope.getSourceFileDirectory();
+				Path filePath = Paths.get(directory != null ? directory : System.getProperty("user.dir"))
+						.resolve(((Atom.Str) args.get(0)).getStringValue(false));
+				return Atom.Isolate.start(filePath);
+			}
+		});
+		// wrappers for built-ins, only parsed and evaluated when first used
+		define("print", "let print = fn(s) => " + print + "(str(s))");
+		define("print", "var print = fn(s1, s2) => print(str(s1) + \" \" + s2)");
+		define("print", "var print = fn(s1, s2, s3) => print(str(s1) + \" \" + s2, s3)");
+		define("println", "let println = fn(s) => " + print + "(str(s) + '\\n')");
+		define("println", "var println = fn(s1, s2) => println(str(s1) + \" \" + s2)");
+		define("println", "var println = fn(s1, s2, s3) => println(str(s1) + \" \" + s2, s3)");
+		define("input", "let input = fn(s) => " + input + "(s)");
+		define("typeof", "let typeof = fn(e) => " + typeof + "(e)");
+		define("upper", "let upper = fn(s) => " + upper + "(s)");
+		define("lower", "let lower = fn(s) => " + lower + "(s)");
+		define("round", "let round = fn(s) => " + round + "(s)");
+		define("floor", "let floor = fn(s) => " + floor + "(s)");
+		define("ceil", "let ceil = fn(s) => " + ceil + "(s)");
+		define("str", "let str = fn(obj) => \"\" + obj");
+		define("substr", "let substr = fn(s, b, e) => " + substr + "(s, b, e)");
+		define("parseInt", "let parseInt = fn(s) => " + parseInt + "(s)");
+		define("parseBool", "let parseBool = fn(s) => " + parseBool + "(s)");
+		define("spawn", "let spawn = fn(f) => " + spawn + "(f)");
+		define("await", "let await = fn(f) => " + await + "(f)");
+		define("channel", "let channel = fn() => " + channel + "(16)");
+		define("channel", "var channel = fn(n) => " + channel + "(n)");
+		define("send", "let send = fn(c, v) => " + send + "(c, v)");
+		define("receive", "let receive = fn(c) => " + receive + "(c)");
 
 		// small standard library
-		execute("let range = fn(a, b) => if (a == b - 1) then ([a]) else ([a] + range(a + 1, b))");
-		execute("let fmap = fn(f, ls) => if (ls) then ([f(^ls)] + fmap(f, $ls)) else ([])");
-		execute("let filter = fn(f, ls) => if (ls) then (if (f(^ls)) then ([^ls] + filter(f, $ls)) else (filter(f, $ls))) else ([])");
-		execute("let fold = fn(f, acc, ls) => if (ls) then (fold(f, f(acc, ^ls), $ls)) else (acc)");
-		execute("let sum = fn(ls) => fold(fn (a, b) => a + b, 0, ls)");
-		execute("let product = fn(ls) => fold(fn (a, b) => a * b, 1, ls)");
-		execute("let reverse = fn(ls) => fold(fn (rs, el) => [el] + rs, [], ls)");
-		execute("let has = fn(val) => typeof(val) != \"Unit\"");
+		define("range", "let range = fn(a, b) => if (a == b - 1) then ([a]) else ([a] + range(a + 1, b))");
+		define("fmap", "let fmap = fn(f, ls) => if (ls) then ([f(^ls)] + fmap(f, $ls)) else ([])");
+		define("filter", "let filter = fn(f, ls) => if (ls) then (if (f(^ls)) then ([^ls] + filter(f, $ls)) else (filter(f, $ls))) else ([])");
+		define("fold", "let fold = fn(f, acc, ls) => if (ls) then (fold(f, f(acc, ^ls), $ls)) else (acc)");
+		define("sum", "let sum = fn(ls) => fold(fn (a, b) => a + b, 0, ls)");
+		define("product", "let product = fn(ls) => fold(fn (a, b) => a * b, 1, ls)");
+		define("reverse", "let reverse = fn(ls) => fold(fn (rs, el) => [el] + rs, [], ls)");
+		define("has", "let has = fn(val) => typeof(val) != \"Unit\"");
+	}
+
+	/**
+	 * Define a built-in variable by its source code, which is evaluated the
+	 * first time the variable is used.
+	 */
+	private void define(String name, String source) {
+		if (precompiledBuiltins != null) {
+			return; // Added when the prototype is built
+		}
+		globalScope.addLazyDefinition(name, source);
 	}
 
 	/**
@@ -173,23 +352,84 @@ public class Interpreter {
 	 * reused for running a new program.
 	 */
 	public void clear() {
+		// Built-ins are kept in the prototype and don't need to be loaded again.
 		globalScope.clear();
-		// load built-ins
-		try {
-			loadProgram();
-		} catch (Exception e) {
-			// Exceptions cannot be thrown from the interpreter if we have gotten to this
-			// point.
-			System.out.println(e.getMessage());
+	}
+
+	/**
+	 * Create an interpreter that shares every variable defined so far, but keeps
+	 * new variables to itself. The global scope of this interpreter is sealed by
+	 * the first fork, so that any number of forks can use it from different
+	 * threads at once. Variables can no longer be defined in this interpreter
+	 * after that, only in its forks.
+	 *
+	 * @return A new interpreter on top of the variables of this one.
+	 */
+	public synchronized Interpreter fork() {
+		if (!globalScope.isSealed()) {
+			globalScope.seal();
 		}
+		Interpreter fork = new Interpreter(new GlobalScope(globalScope));
+		fork.globalScope.setSourceFileDirectory(globalScope.getSourceFileDirectory());
+		fork.limits = limits;
+		return fork;
+	}
+
+	/**
+	 * Save the evaluated state of the interpreter as an image, which can be
+	 * restored without evaluating anything again.
+	 *
+	 * @param out The stream to write the image to.
+	 * @throws Exception If the state cannot be written.
+	 */
+	public void saveImage(OutputStream out) throws Exception {
+		new ImageWriter(out).writeImage(globalScope, getKernelNames());
+	}
+
+	/**
+	 * Create an interpreter from an image saved by saveImage.
+	 *
+	 * @param in The stream to read the image from.
+	 * @return A new interpreter with the state of the image.
+	 * @throws Exception If the image cannot be read, or was saved with built-ins
+	 *                   that are incompatible with the loaded ones.
+	 */
+	public static Interpreter fromImage(InputStream in) throws Exception {
+		ImageReader reader = new ImageReader(in);
+		useKernelNames(reader.readImageHeader());
+		Interpreter i = new Interpreter();
+		reader.readImage(i.globalScope);
+		return i;
 	}
 
 	public GlobalScope getGlobalScope() {
 		return globalScope;
 	}
 
+	/**
+	 * Limit the resources of every evaluation by this interpreter. Evaluations
+	 * exceeding the limits throw a LimitExceededException.
+	 *
+	 * @param limits The limits, or null to remove them.
+	 */
+	public void setLimits(EvaluationLimits limits) {
+		this.limits = limits;
+	}
+
+	public EvaluationLimits getLimits() {
+		return limits;
+	}
+
 	public Atom eval(String expr) throws Exception {
-		return Parser.parseExpr(expr).eval(globalScope);
+		Expr parsed = Parser.parseExpr(expr);
+		Governor governor = Governor.enter(limits);
+		try {
+			return parsed.eval(globalScope);
+		} catch (StackOverflowError e) {
+			throw overflow(governor, e);
+		} finally {
+			Governor.exit(governor);
+		}
 	}
 
 	public void execute(String expr) throws Exception {
@@ -210,16 +450,75 @@ public class Interpreter {
 	public Atom[] evalAll(String program, String sourceFileDirectoryPath) throws Exception {
 		ArrayList<Expr> exprs = Parser.parseExprs(program); // Use both ; and \n to separate expressions, todo: Rigorous
 		// implementation
+		return evalAll(exprs, sourceFileDirectoryPath);
+	}
+
+	/**
+	 * Evaluate already parsed expressions and return all their values.
+	 *
+	 * @param exprs                   Expressions to evaluate
+	 * @param sourceFileDirectoryPath Directory to resolve imports from
+	 * @throws Exception
+	 */
+	public Atom[] evalAll(ArrayList<Expr> exprs, String sourceFileDirectoryPath) throws Exception {
 		globalScope.setSourceFileDirectory(sourceFileDirectoryPath);
 		ArrayList<Atom> results = new ArrayList<>();
-		for (int i = 0; i < exprs.size(); i++) {
-			results.add(exprs.get(i).eval(globalScope));
+		Governor governor = Governor.enter(limits);
+		try {
+			globalScope.getModuleCache().prefetch(exprs, globalScope);
+			for (int i = 0; i < exprs.size(); i++) {
+				results.add(exprs.get(i).eval(globalScope));
+			}
+		} catch (StackOverflowError e) {
+			throw overflow(governor, e);
+		} finally {
+			Governor.exit(governor);
 		}
 		Atom[] ret = new Atom[results.size()];
 		ret = results.toArray(ret);
 		return ret;
 	}
 
+	/**
+	 * Parse and evaluate a program one top-level expression at a time. Each
+	 * expression is evaluated as soon as it is parsed and is not kept afterwards,
+	 * so that output starts right away and huge programs do not have to fit in
+	 * memory as a whole. Expressions before a syntax error have already been
+	 * evaluated when it is thrown.
+	 *
+	 * @param program                 The source code of the program.
+	 * @param sourceFileDirectoryPath Directory to resolve imports from
+	 * @return The value of the last expression, or unit if there is none.
+	 * @throws Exception
+	 */
+	public Atom evalStream(CharSequence program, String sourceFileDirectoryPath) throws Exception {
+		globalScope.setSourceFileDirectory(sourceFileDirectoryPath);
+		Parser parser = Parser.stream(program);
+		Atom result = new Atom.Unit();
+		Governor governor = Governor.enter(limits);
+		try {
+			for (Expr expr = parser.nextExpr(); expr != null; expr = parser.nextExpr()) {
+				result = expr.eval(globalScope);
+			}
+		} catch (StackOverflowError e) {
+			throw overflow(governor, e);
+		} finally {
+			Governor.exit(governor);
+		}
+		return result;
+	}
+
+	/**
+	 * A governed evaluation that runs out of stack is aborted like any other
+	 * exceeded limit, so that hosts only have to handle one kind of error.
+	 */
+	private RuntimeException overflow(Governor governor, StackOverflowError e) {
+		if (governor == null || limits == null) {
+			throw e;
+		}
+		return new LimitExceededException("Ran out of stack space, the call depth is too large");
+	}
+
 	public void executeAll(String program, String sourceFileDirectoryPath) throws Exception {
 		Atom[] res = evalAll(program, sourceFileDirectoryPath);
 		if (res.length == 0)
@@ -229,6 +528,103 @@ public class Interpreter {
 			System.out.println(lst.toString());
 		}
 	}
+
+	public static void testInterpreter() throws Exception {
+		Path dir = Files.createTempDirectory("rsc-test");
+		Files.writeString(dir.resolve("shared.rs"), "pub let double = fn (n) => n * 2");
+		Interpreter i = new Interpreter();
+		i.eval("let x = 5");
+
+		{
+			// interpreters share the built-ins, but never each others variables
+			Interpreter other = new Interpreter();
+			other.eval("let x = 7");
+			other.eval("var sum = fn (a, b) => a + b");
+			assert ((Atom.Integer) other.eval("sum(3, 4)")).val == 7;
+			assert ((Atom.Integer) i.eval("x")).val == 5;
+			boolean sharedVariation = true;
+			try {
+				i.eval("sum(3, 4)");
+			} catch (Exception e) {
+				sharedVariation = false;
+			}
+			assert !sharedVariation;
+			other.clear();
+			assert ((Atom.Integer) other.eval("sum([1, 2, 3])")).val == 6;
+		}
+
+		{
+			// forks share the definitions of an interpreter and evaluate on many threads at once
+			Interpreter base = new Interpreter();
+			base.evalAll("let square = fn (n) => n * n\nlet adder = fn (a) => fn (b) => a + b", dir.toString());
+			ArrayList<Expr> request = Parser.parseExprs("let add = adder(n)\nlet add2 = adder(n * 2)\nsquare(add(1)) + add2(0)");
+			ExecutorService workers = Threads.newExecutor();
+			ArrayList<Future<Atom[]>> results = new ArrayList<>();
+			for (int n = 0; n < 4000; n++) {
+				Interpreter fork = base.fork();
+				fork.getGlobalScope().set("n", new Atom.Integer(n));
+				results.add(workers.submit(() -> fork.evalAll(request, dir.toString())));
+			}
+			for (int n = 0; n < results.size(); n++) {
+				Atom[] values = results.get(n).get();
+				assert ((Atom.Integer) values[values.length - 1]).val == (n + 1) * (n + 1) + n * 2;
+			}
+			workers.shutdown();
+			boolean baseSealed = false;
+			try {
+				base.eval("let square = 1");
+			} catch (RuntimeException e) {
+				baseSealed = true;
+			}
+			assert baseSealed;
+		}
+
+		{
+			// the evaluated state can be saved as an image and restored without evaluating it again
+			Interpreter saved = new Interpreter();
+			saved.evalAll("imp double from \"shared.rs\"\nlet base = 10\nlet addBase = fn (n) => double(n) + base\nvar println = fn (a, b, c, d) => println(a, b, c + d)", dir.toString());
+			ArrayList<Expr> moduleBody = new ArrayList<>(List.of(new Expr.AssignExpr("secret", Parser.parseExpr("3")),
+					new Expr.PublicExpr(new Expr.AssignExpr("triple", Parser.parseExpr("fn (n) => n * secret")))));
+			new Expr.ModuleExpr("M", moduleBody, -1, -1).eval(saved.getGlobalScope());
+			ByteArrayOutputStream image = new ByteArrayOutputStream();
+			saved.saveImage(image);
+			Interpreter restored = Interpreter.fromImage(new ByteArrayInputStream(image.toByteArray()));
+			assert ((Atom.Integer) restored.eval("addBase(1)")).val == 12;
+			assert ((Atom.Integer) restored.eval("M.triple(2)")).val == 6;
+			assert restored.getGlobalScope().get("println") != saved.getGlobalScope().get("println");
+		}
+
+		{
+			// large files are parsed straight from a memory mapping
+			Files.writeString(dir.resolve("generated.rs"), "let total = 0\n" + "let total = total + 1\n".repeat(20000) + "total");
+			ArrayList<Expr> generated = Parser.parseExprs(FileHelper.mapFile(dir.resolve("generated.rs")));
+			assert generated.size() == 20002;
+			assert new Interpreter().evalAll(generated, dir.toString())[20001].toString().equals("20000");
+		}
+
+		{
+			// streamed programs are evaluated one expression at a time, with the same syntax errors
+			Interpreter streaming = new Interpreter();
+			assert streaming.evalStream(FileHelper.mapFile(dir.resolve("generated.rs")), dir.toString()).toString()
+					.equals("20000");
+			String streamError = null;
+			try {
+				streaming.evalStream("let before = 1\nlet = 2", dir.toString());
+			} catch (Exception e) {
+				streamError = e.getMessage();
+			}
+			assert streaming.eval("before").toString().equals("1");
+			try {
+				Parser.parseExprs("let before = 1\nlet = 2");
+			} catch (Exception e) {
+				assert e.getMessage().equals(streamError);
+			}
+			assert streamError.startsWith("Error at line 2");
+			Files.writeString(dir.resolve("unicode.rs"), "\"h\u00e9j\"");
+			assert streaming.evalStream(FileHelper.mapFile(dir.resolve("unicode.rs")), dir.toString()).toString()
+					.equals("\"h\u00e9j\"");
+		}
+	}
 }
 
 @FunctionalInterface
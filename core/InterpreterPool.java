@@ -0,0 +1,219 @@
+package core;
+
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed number of interpreters that are handed out to run one program each,
+ * like one script per request in a service. Interpreters are created up front
+ * and rolled back to their initial variables and limits when they are
+ * released, so that a program never sees the variables of the one before it.
+ *
+ * <p>
+ * A pool can be created on top of a base interpreter, in which case every
+ * pooled interpreter is a fork of it. Definitions shared by all programs, like
+ * a prelude, are then only evaluated once.
+ * </p>
+ *
+ * <p>
+ * All methods can be called from any thread. The pool keeps track of how long
+ * threads waited for an interpreter and how long it took to reset them.
+ * </p>
+ */
+public class InterpreterPool {
+	private final ArrayBlockingQueue<Interpreter> available;
+	private final Set<Interpreter> inUse = ConcurrentHashMap.newKeySet();
+	private final EvaluationLimits limits; // The limits interpreters get back when released
+	private final int size;
+	private final AtomicLong acquired = new AtomicLong();
+	private final AtomicLong waitNanos = new AtomicLong();
+	private final AtomicLong resetNanos = new AtomicLong();
+
+	/**
+	 * Create a pool of new interpreters with only the built-ins defined.
+	 *
+	 * @param size The number of interpreters in the pool.
+	 * @throws Exception If the built-ins failed to load.
+	 */
+	public InterpreterPool(int size) throws Exception {
+		this(null, size);
+	}
+
+	/**
+	 * Create a pool of forks of an interpreter. The base interpreter is sealed by
+	 * this, and must not be used for evaluating anymore.
+	 *
+	 * @param base The interpreter with the definitions shared by all programs, or
+	 *             null to only share the built-ins.
+	 * @param size The number of interpreters in the pool.
+	 * @throws Exception If the built-ins failed to load.
+	 * @see Interpreter#fork()
+	 */
+	public InterpreterPool(Interpreter base, int size) throws Exception {
+		if (size < 1) {
+			throw new IllegalArgumentException("The pool must hold at least one interpreter");
+		}
+		this.size = size;
+		this.available = new ArrayBlockingQueue<>(size);
+		this.limits = base != null ? base.getLimits() : null;
+		for (int n = 0; n < size; n++) {
+			Interpreter i = base != null ? base.fork() : new Interpreter();
+			i.getGlobalScope().checkpoint();
+			available.add(i);
+		}
+	}
+
+	/**
+	 * Take an interpreter from the pool, waiting until one is released if all
+	 * of them are in use.
+	 *
+	 * @return An interpreter, which must be given back with release.
+	 * @throws InterruptedException If the thread is interrupted while waiting.
+	 */
+	public Interpreter acquire() throws InterruptedException {
+		long start = System.nanoTime();
+		Interpreter i = available.take();
+		inUse.add(i);
+		waitNanos.addAndGet(System.nanoTime() - start);
+		acquired.incrementAndGet();
+		return i;
+	}
+
+	/**
+	 * Roll back an interpreter to its initial variables and limits, and give it
+	 * back to the pool.
+	 *
+	 * @param i An interpreter taken from this pool.
+	 * @throws IllegalStateException If the interpreter was not taken from this
+	 *                               pool, or has already been released.
+	 */
+	public void release(Interpreter i) {
+		if (!inUse.remove(i)) {
+			throw new IllegalStateException("The interpreter was not acquired from this pool");
+		}
+		long start = System.nanoTime();
+		i.getGlobalScope().rollback();
+		i.setLimits(limits);
+		resetNanos.addAndGet(System.nanoTime() - start);
+		available.add(i);
+	}
+
+	/**
+	 * Evaluate a program on an interpreter from the pool, and release it
+	 * afterwards.
+	 *
+	 * @param exprs                   The parsed program.
+	 * @param sourceFileDirectoryPath Directory to resolve imports from.
+	 * @return The values of all expressions.
+	 * @throws Exception If the program fails to evaluate.
+	 */
+	public Atom[] evalAll(ArrayList<Expr> exprs, String sourceFileDirectoryPath) throws Exception {
+		Interpreter i = acquire();
+		try {
+			return i.evalAll(exprs, sourceFileDirectoryPath);
+		} finally {
+			release(i);
+		}
+	}
+
+	/**
+	 * Get the number of interpreters in the pool, both available and in use.
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Get the number of interpreters that are not in use.
+	 */
+	public int getAvailable() {
+		return available.size();
+	}
+
+	/**
+	 * Get the number of times an interpreter has been acquired.
+	 */
+	public long getAcquireCount() {
+		return acquired.get();
+	}
+
+	/**
+	 * Get the total time threads have waited for an interpreter, in nanoseconds.
+	 */
+	public long getTotalWaitTime() {
+		return waitNanos.get();
+	}
+
+	/**
+	 * Get the total time spent rolling back released interpreters, in
+	 * nanoseconds.
+	 */
+	public long getTotalResetTime() {
+		return resetNanos.get();
+	}
+
+	public String toString() {
+		long count = Math.max(acquired.get(), 1);
+		return String.format("InterpreterPool { size: %s, available: %s, acquired: %s, avgWait: %sus, avgReset: %sus }",
+				size, getAvailable(), acquired.get(), waitNanos.get() / count / 1000, resetNanos.get() / count / 1000);
+	}
+
+	public static void testInterpreterPool() throws Exception {
+		{
+			// pooled interpreters are rolled back to the shared definitions when released
+			Interpreter prelude = new Interpreter();
+			prelude.evalAll("let greeting = \"Hi\"\nlet shout = fn (s) => upper(s)", ".");
+			InterpreterPool pool = new InterpreterPool(prelude, 1);
+			Interpreter pooled = pool.acquire();
+			pooled.evalAll("let secret = 1\nvar shout = fn (a, b) => a + b\nlet greeting = \"Bye\"", ".");
+			assert ((Atom.Integer) pooled.eval("shout(1, 2)")).val == 3;
+			pool.release(pooled);
+			Interpreter reused = pool.acquire();
+			assert reused == pooled && !reused.getGlobalScope().has("secret");
+			assert reused.eval("greeting").toJava().equals("Hi") && reused.eval("shout(\"a\")").toJava().equals("A");
+			boolean variationRolledBack = false;
+			try {
+				reused.eval("shout(1, 2)");
+			} catch (Exception e) {
+				variationRolledBack = true;
+			}
+			assert variationRolledBack;
+			pool.release(reused);
+			assert pool.getAcquireCount() == 2 && pool.getAvailable() == pool.getSize();
+		}
+
+		{
+			// only interpreters in use can be released, and they get the limits of the pool back
+			EvaluationLimits limits = new EvaluationLimits().setFuel(1_000_000);
+			Interpreter base = new Interpreter();
+			base.setLimits(limits);
+			InterpreterPool pool = new InterpreterPool(base, 2);
+			Interpreter pooled = pool.acquire();
+			pooled.setLimits(null);
+			pool.release(pooled);
+			assert pooled.getLimits() == limits;
+			int rejected = 0;
+			for (Interpreter stranger : new Interpreter[] { pooled, new Interpreter() }) {
+				try {
+					pool.release(stranger);
+				} catch (IllegalStateException e) {
+					rejected++;
+				}
+			}
+			assert rejected == 2 && pool.getAvailable() == pool.getSize();
+		}
+
+		{
+			// a rollback drops the variations added after the checkpoint
+			Interpreter checkpointed = new Interpreter();
+			checkpointed.eval("let f = fn (a) => a");
+			checkpointed.getGlobalScope().checkpoint();
+			checkpointed.eval("var f = fn (a, b) => b");
+			checkpointed.getGlobalScope().rollback();
+			assert ((Atom.Lambda) checkpointed.eval("f")).variations.size() == 1;
+		}
+	}
+}
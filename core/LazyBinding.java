@@ -0,0 +1,90 @@
+package core;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+
+/**
+ * A variable in a global scope that is defined by source code which is only
+ * parsed and evaluated the first time the variable is looked up. Used for the
+ * built-ins, so that a script only pays for the ones it actually uses.
+ */
+class LazyBinding {
+	private final String name;
+	private final ArrayList<String> sources = new ArrayList<>();
+	private final ArrayList<Expr> definitions = new ArrayList<>();
+	private volatile Atom value;
+
+	LazyBinding(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Add a definition, like a let or var expression, that is evaluated when the
+	 * binding is resolved. Definitions are evaluated in the order they are added.
+	 *
+	 * @param source Source code of the definition.
+	 */
+	void addDefinition(String source) {
+		sources.add(source);
+	}
+
+	/**
+	 * Add an already parsed definition. A binding is either defined by source
+	 * code or by parsed definitions, never both.
+	 *
+	 * @param definition The parsed definition.
+	 */
+	void addDefinition(Expr definition) {
+		definitions.add(definition);
+	}
+
+	/**
+	 * Get the parsed definitions of the binding, parsing its source code the
+	 * first time.
+	 *
+	 * @return The definitions in the order they are evaluated.
+	 * @throws Exception If the source code cannot be parsed.
+	 */
+	synchronized ArrayList<Expr> getDefinitions() throws Exception {
+		for (String source : sources) {
+			definitions.add(Parser.parseExpr(source));
+		}
+		sources.clear();
+		return definitions;
+	}
+
+	/**
+	 * Get the value of the binding, evaluating its definitions the first time.
+	 *
+	 * @param owner The global scope the binding belongs to.
+	 * @return The value of the binding.
+	 */
+	Atom resolve(GlobalScope owner) {
+		Atom resolved = value;
+		if (resolved == null) {
+			synchronized (this) {
+				resolved = value;
+				if (resolved == null) {
+					resolved = value = evaluate(owner);
+				}
+			}
+		}
+		return resolved;
+	}
+
+	private Atom evaluate(GlobalScope owner) {
+		// The definitions are evaluated in a scope of their own, so that the owner can
+		// stay sealed while all other variables are still visible to them.
+		Scope definitionScope = owner.deriveNew("Built-in " + name);
+		try {
+			for (Expr definition : getDefinitions()) {
+				definition.eval(definitionScope);
+			}
+		} catch (LimitExceededException | CancellationException e) {
+			throw e; // The evaluation looking up the built-in was aborted
+		} catch (Exception e) {
+			throw new RuntimeException(String.format("Failed to load built-in %s: %s", name, e.getMessage()), e);
+		}
+		return definitionScope.getEnv().get(name);
+	}
+}
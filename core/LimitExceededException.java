@@ -0,0 +1,14 @@
+package core;
+
+/**
+ * Thrown when an evaluation exceeds one of its EvaluationLimits. It is
+ * unchecked, so that it can be thrown wherever resources are used, like when a
+ * list is created.
+ */
+public class LimitExceededException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	public LimitExceededException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,116 @@
+package core;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * The LintCache keeps the results of linting source code on disk, so that a
+ * file is only parsed again when its content has changed. Each entry is named
+ * after a hash of the source code and of the classes of the tokenizer and
+ * parser, and holds the syntax error found in the source code, or nothing if it
+ * passed. Any change to the parser therefore stops old entries from being used.
+ *
+ * <p>
+ * Entries are kept in the same directory as the AstCache, the cache is
+ * disabled together with it, and the least recently used entries are removed
+ * together with parsed files.
+ * </p>
+ */
+public class LintCache {
+	private static final String EXTENSION = ".lint";
+	private static final List<Class<?>> PARSER_CLASSES = List.of(Parser.class, Tokenizer.class, TokenBuffer.class,
+			Token.class, TokenTy.class);
+	private static byte[] parserHash; // Hash of the parser classes, computed on first use
+
+	/**
+	 * Check source code for syntax errors, or get the result from the cache if the
+	 * same source code has been checked before.
+	 *
+	 * @param source The source code to check.
+	 * @return The syntax error, or null if the source code is valid.
+	 */
+	public static String lint(String source) {
+		Path cacheDir = AstCache.getCacheDirectory();
+		if (cacheDir == null) {
+			return check(source);
+		}
+		Path cacheFile = cacheDir.resolve(hash(source) + EXTENSION);
+		if (Files.isRegularFile(cacheFile)) {
+			try {
+				String message = Files.readString(cacheFile, StandardCharsets.UTF_8);
+				AstCache.touch(cacheFile);
+				return message.isEmpty() ? null : message;
+			} catch (IOException e) {
+				// Unreadable cache file, check the source again
+			}
+		}
+		String message = check(source);
+		try {
+			write(cacheFile, message);
+			AstCache.written(cacheDir);
+		} catch (IOException e) {
+			// The cache is only an optimization
+		}
+		return message;
+	}
+
+	private static String check(String source) {
+		try {
+			Parser.parseExprs(source);
+			return null;
+		} catch (Exception e) {
+			return String.valueOf(e.getMessage());
+		}
+	}
+
+	private static void write(Path cacheFile, String message) throws IOException {
+		Files.createDirectories(cacheFile.getParent());
+		Path tempFile = Files.createTempFile(cacheFile.getParent(), "lint", ".tmp");
+		try {
+			Files.writeString(tempFile, message != null ? message : "", StandardCharsets.UTF_8);
+			Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(tempFile);
+		}
+	}
+
+	private static String hash(String source) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(getParserHash());
+			return HexFormat.of().formatHex(digest.digest(source.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Hash the class files of the parser. If they cannot be read, the versions of
+	 * the language and the AST format are used instead.
+	 */
+	private static synchronized byte[] getParserHash() throws NoSuchAlgorithmException {
+		if (parserHash == null) {
+			parserHash = AstCache.hashClasses("lint" + Interpreter.VERSION + AstWriter.VERSION, PARSER_CLASSES);
+		}
+		return parserHash;
+	}
+
+	public static void testLintCache() throws Exception {
+		{
+			// lint results are cached by content
+			String error = lint("let = 1");
+			assert error != null && error.equals(lint("let = 1"));
+			assert lint("let a = 1") == null && lint("let a = 1") == null;
+			try (var entries = Files.list(AstCache.getCacheDirectory())) {
+				assert entries.filter(entry -> entry.toString().endsWith(".lint")).count() >= 2;
+			}
+		}
+	}
+}
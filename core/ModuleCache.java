@@ -0,0 +1,383 @@
+package core;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import core.util.FileHelper;
+
+/**
+ * The ModuleCache keeps the exports of every file imported by a program, so
+ * that a file is only evaluated once per program no matter how many times or
+ * from how many places it is imported. Every interpreter has a cache of its
+ * own, shared with the files it imports, so the side effects of a file happen
+ * once for each interpreter importing it. A cached file is evaluated again if
+ * its modification time or size has changed since it was loaded.
+ *
+ * <p>
+ * When possible, only the definitions needed by the imported names are
+ * evaluated. A file imported again for other names is then evaluated again for
+ * all names imported from it so far.
+ * </p>
+ *
+ * <p>
+ * Independent imports at the top of a file are loaded in parallel before the
+ * file is evaluated. This is only done for files without side effects, so that
+ * the output of a program stays the same.
+ * </p>
+ *
+ * <p>
+ * A file imported from several threads at once is only evaluated by one of
+ * them, and the others wait for its exports. A thread about to wait for a
+ * file that is loaded by a thread waiting for one of its own files is part of
+ * an import cycle, which is reported instead. A file that is already being
+ * loaded ahead of time is left to be imported as usual.
+ * </p>
+ */
+public class ModuleCache {
+	// Parsed files of a compiled program, the same for every interpreter
+	private static final ConcurrentHashMap<Path, ArrayList<Expr>> compiledModules = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Path, CachedModule> modules = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Path, ReentrantLock> loading = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Path, Thread> owners = new ConcurrentHashMap<>(); // Thread loading each file
+	private final ConcurrentHashMap<Thread, Path> waiting = new ConcurrentHashMap<>(); // File each thread waits for
+
+	/**
+	 * Thrown when a speculatively loaded file is left to be imported as usual,
+	 * because it has side effects or is already being loaded.
+	 */
+	private static class SkippedException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		private SkippedException(String message) {
+			super(message);
+		}
+	}
+
+	private static class CachedModule {
+		private final long lastModified;
+		private final long size;
+		private final HashMap<String, Atom> exports;
+		private final Set<String> names; // Names the file was evaluated for, or null if fully evaluated
+
+		private CachedModule(BasicFileAttributes attributes, HashMap<String, Atom> exports, Set<String> names) {
+			// Compiled modules have no attributes and never change
+			this.lastModified = attributes != null ? attributes.lastModifiedTime().toMillis() : -1;
+			this.size = attributes != null ? attributes.size() : -1;
+			this.exports = exports;
+			this.names = names;
+		}
+
+		private boolean isValid(BasicFileAttributes attributes) {
+			if (attributes == null) {
+				return lastModified == -1;
+			}
+			return lastModified == attributes.lastModifiedTime().toMillis() && size == attributes.size();
+		}
+
+		private boolean provides(Collection<String> importNames) {
+			return names == null || names.containsAll(importNames);
+		}
+	}
+
+	/**
+	 * Get the exports of a file, evaluating it if it is not already cached.
+	 *
+	 * @param filePath    Path to the imported file.
+	 * @param importNames The names to import from the file.
+	 * @param importChain The files currently being imported, leading up to this
+	 *                    import.
+	 * @param speculative Whether the file is loaded ahead of time, and must not
+	 *                    have any side effects.
+	 * @return The exported variables of the file.
+	 * @throws Exception If the file cannot be read, is part of an import cycle
+	 *                   or fails to evaluate.
+	 */
+	public HashMap<String, Atom> load(Path filePath, Collection<String> importNames, List<Path> importChain,
+			boolean speculative) throws Exception {
+		ArrayList<Expr> exprs = compiledModules.get(filePath.toAbsolutePath().normalize());
+		Path canonicalPath;
+		BasicFileAttributes attributes = null;
+		if (exprs != null) {
+			canonicalPath = filePath.toAbsolutePath().normalize();
+		} else {
+			FileHelper.validateIsFile(filePath);
+			canonicalPath = filePath.toRealPath();
+			attributes = readAttributes(canonicalPath);
+		}
+		if (importChain.contains(canonicalPath)) {
+			throw new Exception(String.format("Circular import of %s: %s", filePath.getFileName(),
+					formatCycle(importChain, canonicalPath)));
+		}
+		ReentrantLock lock = loading.computeIfAbsent(canonicalPath, path -> new ReentrantLock());
+		if (speculative) {
+			if (lock.isHeldByCurrentThread() || !lock.tryLock()) {
+				throw new SkippedException(String.format("File %s is already being loaded", filePath.getFileName()));
+			}
+		} else if (!lock.tryLock()) {
+			waiting.put(Thread.currentThread(), canonicalPath);
+			try {
+				do {
+					// Loaded by another thread, check for cycles and the limits of the importer again
+					List<Path> cycle = findCycle(canonicalPath, importChain);
+					if (cycle != null) {
+						throw new Exception(String.format("Circular import of %s: %s", filePath.getFileName(),
+								formatCycle(cycle, cycle.get(0))));
+					}
+				} while (!lock.tryLock(Governor.waiting(), TimeUnit.MILLISECONDS));
+			} finally {
+				waiting.remove(Thread.currentThread());
+			}
+		}
+		owners.put(canonicalPath, Thread.currentThread());
+		try {
+			CachedModule cached = modules.get(canonicalPath);
+			HashSet<String> names = new HashSet<>(importNames);
+			if (cached != null && cached.isValid(attributes)) {
+				if (cached.provides(importNames)) {
+					return cached.exports;
+				}
+				names.addAll(cached.names);
+			}
+
+			if (exprs == null) {
+				exprs = AstCache.parseExprs(FileHelper.readFile(canonicalPath));
+			}
+			Interpreter i = new Interpreter();
+			i.getGlobalScope().setModuleCache(this);
+			ArrayList<Expr> slice = ImportSlicer.slice(exprs, names, i.getGlobalScope());
+			if (slice == null && speculative) {
+				throw new SkippedException(String.format("File %s has side effects", filePath.getFileName()));
+			}
+			ArrayList<Path> chain = new ArrayList<>(importChain);
+			chain.add(canonicalPath);
+			i.getGlobalScope().setImportChain(chain);
+			i.getGlobalScope().setSpeculative(speculative);
+			i.evalAll(slice != null ? slice : exprs, filePath.getParent().normalize().toAbsolutePath().toString());
+			i.getGlobalScope().seal(); // The exports are shared by every importer, on any thread
+			HashMap<String, Atom> exports = i.getGlobalScope().getExports();
+			modules.put(canonicalPath, new CachedModule(attributes, exports, slice != null ? names : null));
+			return exports;
+		} finally {
+			if (lock.getHoldCount() == 1) {
+				owners.remove(canonicalPath);
+			}
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Follow the threads waiting for each others files, starting with the thread
+	 * loading the given file. If the current thread is reached, waiting for the
+	 * file would never end.
+	 *
+	 * @return The files of the cycle, starting and ending with a file of the
+	 *         import chain, or null if there is no cycle.
+	 */
+	private List<Path> findCycle(Path filePath, List<Path> importChain) {
+		ArrayList<Path> waitedFor = new ArrayList<>();
+		Path path = filePath;
+		while (path != null && !waitedFor.contains(path)) {
+			waitedFor.add(path);
+			Thread owner = owners.get(path);
+			if (owner == null) {
+				return null;
+			}
+			path = waiting.get(owner);
+			if (owner != Thread.currentThread() && path != null && importChain.contains(path)
+					&& owners.get(path) == Thread.currentThread()) {
+				ArrayList<Path> cycle = new ArrayList<>(importChain.subList(importChain.indexOf(path),
+						importChain.size()));
+				cycle.addAll(waitedFor);
+				return cycle;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Load all imports at the top level of a file in parallel, so that they are
+	 * already cached when the file is evaluated. Files with side effects, or that
+	 * fail to load, are skipped and left to be imported as usual.
+	 *
+	 * @param exprs The top-level expressions of a file.
+	 * @param scope The global scope the file is evaluated in.
+	 */
+	public void prefetch(List<Expr> exprs, GlobalScope scope) {
+		if (scope.getSourceFileDirectory() == null) {
+			return;
+		}
+		ArrayList<RecursiveAction> tasks = new ArrayList<>();
+		for (Expr expr : exprs) {
+			if (expr instanceof Expr.ImportExpr) {
+				Expr.ImportExpr importExpr = (Expr.ImportExpr) expr;
+				Path filePath = Paths.get(scope.getSourceFileDirectory()).resolve(importExpr.fileName);
+				Governor fork = Governor.fork(null, true); // The limits of the importer apply to its imports
+				tasks.add(new RecursiveAction() {
+					protected void compute() {
+						Governor outer = Governor.install(fork);
+						try {
+							load(filePath, importExpr.importList, scope.getImportChain(), true);
+						} catch (Exception e) {
+							// Reported when the import is evaluated
+						} finally {
+							Governor.restore(outer);
+						}
+					}
+				});
+			}
+		}
+		if (tasks.size() > 1) {
+			ForkJoinTask.invokeAll(tasks);
+		}
+	}
+
+	/**
+	 * Add the parsed expressions of a file that was compiled into the program.
+	 * The file is then imported without being read from disk.
+	 *
+	 * @param filePath The absolute path of the file when it was compiled.
+	 * @param exprs    The top-level expressions of the file.
+	 */
+	public static void addCompiledModule(Path filePath, ArrayList<Expr> exprs) {
+		compiledModules.put(filePath.toAbsolutePath().normalize(), exprs);
+	}
+
+	/**
+	 * Get the parsed expressions of a file that was compiled into the program.
+	 *
+	 * @param filePath The path of the file.
+	 * @return The top-level expressions of the file, or null if it was not
+	 *         compiled into the program.
+	 */
+	static ArrayList<Expr> getCompiledModule(Path filePath) {
+		return compiledModules.get(filePath.toAbsolutePath().normalize());
+	}
+
+	/**
+	 * Forget all cached files, forcing them to be evaluated again on the next
+	 * import.
+	 */
+	public void clear() {
+		modules.clear();
+	}
+
+	private static BasicFileAttributes readAttributes(Path filePath) throws IOException {
+		return Files.readAttributes(filePath, BasicFileAttributes.class);
+	}
+
+	private static String formatCycle(List<Path> importChain, Path filePath) {
+		StringBuilder sb = new StringBuilder();
+		for (Path p : importChain.subList(importChain.indexOf(filePath), importChain.size())) {
+			sb.append(p.getFileName()).append(" -> ");
+		}
+		return sb.append(filePath.getFileName()).toString();
+	}
+
+	public static void testModuleCache() throws Exception {
+		Path dir = Files.createTempDirectory("rsc-test");
+		Files.writeString(dir.resolve("shared.rs"), "pub let double = fn (n) => n * 2");
+		Files.writeString(dir.resolve("left.rs"), "imp double from \"shared.rs\"\npub let left = fn (n) => double(n) + 1");
+		Files.writeString(dir.resolve("right.rs"), "imp double from \"shared.rs\"\npub let right = fn (n) => double(n) - 1");
+		Files.writeString(dir.resolve("cycle.rs"), "imp cycle from \"cycle.rs\"\npub let cycle = 1");
+		Interpreter i = new Interpreter();
+
+		{
+			// imported files are only evaluated once
+			i.evalAll("imp left from \"left.rs\"; imp right from \"right.rs\"", dir.toString());
+			assert ((Atom.Integer) i.eval("left(5) + right(5)")).val == 20;
+			ModuleCache cache = i.getGlobalScope().getModuleCache();
+			assert cache.load(dir.resolve("shared.rs"), List.of("double"), List.of(), false) == cache
+					.load(dir.resolve("shared.rs"), List.of("double"), List.of(), false);
+		}
+
+		{
+			// only the definitions needed by the imported names are evaluated
+			Files.writeString(dir.resolve("lib.rs"), "let helper = fn (n) => n + 1\npub let inc = fn (n) => helper(n)\npub let broken = 1 / 0");
+			i.evalAll("imp inc from \"lib.rs\"", dir.toString());
+			assert ((Atom.Integer) i.eval("inc(1)")).val == 2;
+		}
+
+		{
+			// definitions that start concurrent work or call unknown functions are never sliced away
+			Scope builtins = new Interpreter().getGlobalScope();
+			String[] effectful = { "let t = spawn(fn () => println(\"x\"))\npub let a = 1",
+					"let r = fmap(fn (n) => println(n), [1])\npub let a = 1", "let c = channel(1)\npub let a = 1",
+					"let r = undefined_function(1)\npub let a = 1",
+					"imp double from \"shared.rs\"\nlet r = double(1)\npub let a = 1" };
+			for (String source : effectful) {
+				assert ImportSlicer.slice(Parser.parseExprs(source), List.of("a"), builtins) == null : source;
+			}
+			// imports are always evaluated
+			ArrayList<Expr> slice = ImportSlicer.slice(Parser.parseExprs(
+					"imp double from \"shared.rs\"\nlet quad = fn (n) => double(double(n))\npub let a = sum([1, 2])\npub let b = 2"),
+					List.of("a"), builtins);
+			assert slice.size() == 2 && slice.get(0) instanceof Expr.ImportExpr;
+		}
+
+		{
+			// import cycles are detected
+			boolean cycleDetected = false;
+			try {
+				i.evalAll("imp cycle from \"cycle.rs\"", dir.toString());
+			} catch (Exception e) {
+				cycleDetected = e.getMessage().startsWith("Circular import");
+			}
+			assert cycleDetected;
+		}
+
+		{
+			// import cycles between files loaded by different threads are detected too
+			Files.writeString(dir.resolve("ping.rs"), "pub let ping = { loop (i = 0) while i < 20000 => { let i = i + 1 }; imp pong from \"pong.rs\"; pong }");
+			Files.writeString(dir.resolve("pong.rs"), "pub let pong = { loop (i = 0) while i < 20000 => { let i = i + 1 }; imp ping from \"ping.rs\"; ping }");
+			Interpreter both = new Interpreter();
+			both.setLimits(new EvaluationLimits().setTimeoutMillis(10000));
+			String error = null;
+			try {
+				both.evalAll("par { { imp ping from \"ping.rs\"; ping }; { imp pong from \"pong.rs\"; pong } }", dir.toString());
+			} catch (Exception e) {
+				error = e.getMessage();
+			}
+			assert error != null && error.startsWith("Circular import") : error;
+		}
+
+		{
+			// every interpreter evaluates the files it imports itself
+			Interpreter other = new Interpreter();
+			other.evalAll("imp left from \"left.rs\"", dir.toString());
+			assert other.eval("left") != i.eval("left");
+			assert other.getGlobalScope().getModuleCache().load(dir.resolve("left.rs"), List.of("left"), List.of(),
+					false) != i.getGlobalScope().getModuleCache().load(dir.resolve("left.rs"), List.of("left"),
+							List.of(), false);
+		}
+
+		{
+			// adding a variation to an imported function does not change it for other importers
+			Interpreter varied = new Interpreter();
+			varied.evalAll("imp double from \"shared.rs\"\nvar double = fn (a, b) => a + b", dir.toString());
+			assert ((Atom.Integer) varied.eval("double(1, 2)")).val == 3;
+			Interpreter other = new Interpreter();
+			other.evalAll("imp double from \"shared.rs\"", dir.toString());
+			boolean variationShared = true;
+			try {
+				other.eval("double(1, 2)");
+			} catch (Exception e) {
+				variationShared = false;
+			}
+			assert !variationShared && ((Atom.Integer) other.eval("double(4)")).val == 8;
+		}
+	}
+}
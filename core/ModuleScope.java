@@ -50,6 +50,18 @@ public class ModuleScope extends Scope {
 		return new Atom.Unit();
 	}
 
+	public HashMap<String, Atom> getPrivateEnv() {
+		return privateEnvironment;
+	}
+
+	/**
+	 * Module scopes are only changed while the module is evaluated, so they are
+	 * shared instead of copied.
+	 */
+	public Scope snapshot() {
+		return this;
+	}
+
 	/**
 	 * Toggle set variable declarations to private environment.
 	 */
@@ -12,7 +12,8 @@ import core.Expr.MatchCaseExpr;
  *
  *         A Parser takes a String, tokenizes it using a Tokenizer, and then
  *         converts the flat list of tokens into a meaningful Expr AST which can
- *         be evaluated.
+ *         be evaluated. Tokens are read from the Tokenizer as the parser
+ *         needs them.
  *
  *         <p>
  *         https://matklad.github.io/2020/04/13/simple-but-powerful-pratt-parsing.html
@@ -22,60 +23,76 @@ import core.Expr.MatchCaseExpr;
  *
  */
 public class Parser {
+	private static final int EOF = -1; // Refers to the end of the input instead of a token
+
 	int position, line, column;
-	ArrayList<Token> tokens;
+	private TokenBuffer tokens;
+	private Tokenizer tokenizer; // Produces the tokens not read yet, or null at the end of the input
+	private boolean done; // Whether the last top-level expression has been parsed
 
-	private Parser(ArrayList<Token> tokens) {
+	private Parser(Tokenizer tokenizer) {
 		this.position = 0;
-		this.tokens = tokens;
+		this.tokens = tokenizer.getTokens();
+		this.tokenizer = tokenizer;
+	}
+
+	/**
+	 * Read tokens from the tokenizer until the token at the index is available.
+	 *
+	 * @return True if there is a token at the index.
+	 */
+	private boolean fill(int index) throws Exception {
+		while (tokenizer != null && index >= tokens.size()) {
+			if (!tokenizer.next()) {
+				tokenizer = null;
+			}
+		}
+		return index < tokens.size();
 	}
 
-	private boolean isFinished() {
-		return this.position >= this.tokens.size();
+	private boolean isFinished() throws Exception {
+		return !fill(this.position);
 	}
 
-	private Token peek() {
+	private int peek() throws Exception {
 		return peek(true);
 	}
 
-	private Token peek(boolean skipWhiteSpace) {
+	private int peek(boolean skipWhiteSpace) throws Exception {
 		return peek(skipWhiteSpace, 0);
 	}
 
-	private Token peek(boolean skipWhiteSpace, int offset) {
-		if (isFinished() || position + offset >= tokens.size())
-			return Token.EOF(position, line, column);
-		Token ret = tokens.get(position + offset);
-		if (skipWhiteSpace && ret.ty == TokenTy.NL)
-			return peek(true, offset + 1);
-		return ret;
+	private int peek(boolean skipWhiteSpace, int offset) throws Exception {
+		int ret = position + offset;
+		while (fill(ret)) {
+			if (!skipWhiteSpace || tokens.type(ret) != TokenTy.NL)
+				return ret;
+			ret++;
+		}
+		return EOF;
 	}
 
-	private Token eat() {
+	private int eat() throws Exception {
 		return eat(true);
 	}
 
-	private Token eat(boolean skipWhiteSpace) {
-		if (!isFinished()) {
-			Token ret = tokens.get(position);
+	private int eat(boolean skipWhiteSpace) throws Exception {
+		while (!isFinished()) {
+			int ret = position;
 			position += 1;
-			line = ret.line;
-			column = ret.column;
-			if (skipWhiteSpace && ret.ty == TokenTy.NL)
-				return eat(true);
-			else
+			line = tokens.line(ret);
+			column = tokens.column(ret);
+			if (!skipWhiteSpace || tokens.type(ret) != TokenTy.NL)
 				return ret;
-		} else {
-			return Token.EOF(position, line, column);
 		}
+		return EOF;
 	}
 
-	private boolean expect(TokenTy expected) {
+	private boolean expect(TokenTy expected) throws Exception {
 		if (isFinished())
 			return false;
 
-		Token c = tokens.get(position);
-		if (c.ty == expected) {
+		if (tokens.type(position) == expected) {
 			position += 1;
 			return true;
 		} else {
@@ -83,55 +100,86 @@ public class Parser {
 		}
 	}
 
-	private String error(Token at, String... messages) {
+	private TokenTy ty(int token) {
+		return token == EOF ? TokenTy.EOF : tokens.type(token);
+	}
+
+	private String lexeme(int token) {
+		return token == EOF ? null : tokens.lexeme(token);
+	}
+
+	/**
+	 * Get the index of a token in the source, which is where the token ends.
+	 */
+	private int index(int token) {
+		return token == EOF ? position : tokens.end(token);
+	}
+
+	private int length(int token) {
+		return token == EOF ? 1 : tokens.length(token);
+	}
+
+	private int line(int token) {
+		return token == EOF ? line : tokens.line(token);
+	}
+
+	private int column(int token) {
+		return token == EOF ? column : tokens.column(token);
+	}
+
+	private String describe(int token) {
+		return Token.toString(ty(token), lexeme(token));
+	}
+
+	private String error(int at, String... messages) {
 		return error(at, String.join("\n\t", messages));
 	}
 
-	private String error(Token at, String message) {
-		return "Error at line " + at.line + " column " + at.column + ":\n\t" + message;
+	private String error(int at, String message) {
+		return "Error at line " + line(at) + " column " + column(at) + ":\n\t" + message;
 	}
 
-	private String error(Token start, Token end, String message) {
-		return "Error from line " + start.line + " column " + start.column + " to line " + end.line + " column "
-				+ end.column + ":\n\t" + message;
+	private String error(int start, int end, String message) {
+		return "Error from line " + line(start) + " column " + column(start) + " to line " + line(end) + " column "
+				+ column(end) + ":\n\t" + message;
 	}
 
 	private void assertNext(TokenTy expected) throws Exception {
-		var nx = eat();
-		if (nx.ty != expected) {
-			throw new Exception(error(nx, String.format("Expected %s, got %s", expected.toString(), nx.toString())));
+		int nx = eat();
+		if (ty(nx) != expected) {
+			throw new Exception(error(nx, String.format("Expected %s, got %s", expected.toString(), describe(nx))));
 		}
 	}
 
-	private Expr parseIfExpr(Token nx) throws Exception {
+	private Expr parseIfExpr(int nx) throws Exception {
 		Expr cond = exprBP(0);
 		assertNext(TokenTy.Then);
 		Expr lhs = exprBP(0);
 		assertNext(TokenTy.Else);
 		Expr rhs = exprBP(0);
-		return new Expr.IfExpr(cond, lhs, rhs, nx.index, rhs.endIndex);
+		return new Expr.IfExpr(cond, lhs, rhs, index(nx), rhs.endIndex);
 	}
 
 	private Expr parseIfExpr() throws Exception {
-		return parseIfExpr(Token.EOF(position, line, column));
+		return parseIfExpr(EOF);
 	}
 
-	private Expr parseModuleExpr(Token nx) throws Exception {
+	private Expr parseModuleExpr(int nx) throws Exception {
 		Expr name = exprBP(0);
 		if (!(name instanceof Expr.AtomicExpr && ((Expr.AtomicExpr) name).val instanceof Atom.Ident)) {
 			throw new Exception(error(nx, "Expected module name, got " + name.toString()));
 		}
 		nx = peek();
-		if (nx.ty != TokenTy.LCurlyBracket) {
+		if (ty(nx) != TokenTy.LCurlyBracket) {
 			throw new Exception(error(nx, "Expected module body"));
 		}
 		Expr.BlockExpr block = (Expr.BlockExpr) parseBlock(nx);
-		return new Expr.ModuleExpr(name.toString(), block.getExprs(), nx.index, block.endIndex);
+		return new Expr.ModuleExpr(name.toString(), block.getExprs(), index(nx), block.endIndex);
 	}
 
-	private Expr parseImportExpr(Token nx) throws Exception {
-		if (peek().ty != TokenTy.Ident) {
-			throw new Exception(error(peek(), "Expected import list, got " + peek().toString()));
+	private Expr parseImportExpr(int nx) throws Exception {
+		if (ty(peek()) != TokenTy.Ident) {
+			throw new Exception(error(peek(), "Expected import list, got " + describe(peek())));
 		}
 		ArrayList<Expr> importListExpr = exprBPs(0, true, TokenTy.ImportFrom);
 		ArrayList<String> importList = new ArrayList<>();
@@ -147,15 +195,15 @@ public class Parser {
 			throw new Exception(error(nx, "Expected import string filepath, got " + fileNameExpr.toString()));
 		}
 		String fileName = ((Atom.Str) ((Expr.AtomicExpr) fileNameExpr).val).getStringValue(false);
-		return new Expr.ImportExpr(importList, fileName, nx.index, fileNameExpr.endIndex);
+		return new Expr.ImportExpr(importList, fileName, index(nx), fileNameExpr.endIndex);
 	}
 
-	private Expr parseMatchExpr(Token nx) throws Exception {
+	private Expr parseMatchExpr(int nx) throws Exception {
 		Expr value = exprBP(0);
 		ArrayList<MatchCaseExpr> cases = new ArrayList<>();
-		while (!isFinished() && peek().ty == TokenTy.MatchCase) {
+		while (!isFinished() && ty(peek()) == TokenTy.MatchCase) {
 			eat(); // Eat the Got token
-			Token patternToken = peek();
+			int patternToken = peek();
 			Expr patternExpr = exprBP(0);
 			if (!(patternExpr instanceof Expr.AtomicExpr
 					&& ((Expr.AtomicExpr) patternExpr).val instanceof Atom.Ident)) {
@@ -164,7 +212,7 @@ public class Parser {
 						"If you want to mimic pattern matching, use a constraint by adding 'and <condition>' after wards."));
 			}
 			Expr constraint = null;
-			if (peek().ty == TokenTy.MatchCaseCond) {
+			if (ty(peek()) == TokenTy.MatchCaseCond) {
 				// Parse constraint
 				eat(); // Eat the GotAnd token
 				constraint = exprBP(0);
@@ -172,28 +220,51 @@ public class Parser {
 			assertNext(TokenTy.Then);
 			Expr clause = exprBP(0);
 
-			cases.add(new MatchCaseExpr(value, patternToken.lexeme, constraint, clause, nx.index, clause.endIndex));
+			cases.add(new MatchCaseExpr(value, lexeme(patternToken), constraint, clause, index(nx), clause.endIndex));
 		}
 		if (cases.isEmpty()) {
 			throw new Exception(error(nx, "Match expression must have at least one case"));
 		}
-		return new Expr.MatchExpr(value, cases, nx.index, value.endIndex);
+		return new Expr.MatchExpr(value, cases, index(nx), value.endIndex);
+	}
+
+	private Expr parseLoopExpr(int nx) throws Exception {
+		assertNext(TokenTy.LParen);
+		ArrayList<String> names = new ArrayList<>();
+		ArrayList<Expr> inits = new ArrayList<>();
+		do {
+			int ident = eat();
+			if (ty(ident) != TokenTy.Ident) {
+				throw new Exception(error(ident, "Expected loop accumulator name, got " + describe(ident)));
+			}
+			assertNext(TokenTy.Assign);
+			names.add(lexeme(ident));
+			inits.add(exprBP(0));
+		} while (expect(TokenTy.Comma));
+		assertNext(TokenTy.RParen);
+
+		assertNext(TokenTy.While);
+		Expr cond = exprBP(0);
+		assertNext(TokenTy.Arrow);
+		Expr body = exprBP(0);
+
+		return new Expr.LoopExpr(names, inits, cond, body, index(nx), body.endIndex);
 	}
 
-	private Expr parseList(Token nx) throws Exception {
-		if (peek().ty != TokenTy.RBracket) {
+	private Expr parseList(int nx) throws Exception {
+		if (ty(peek()) != TokenTy.RBracket) {
 			Expr first = exprBP(0);
 
-			if (peek().ty == TokenTy.For) {
+			if (ty(peek()) == TokenTy.For) {
 				// list comprehension
 				assertNext(TokenTy.For);
 
-				Token ident = eat();
-				if (ident.ty != TokenTy.Ident) {
+				int ident = eat();
+				if (ty(ident) != TokenTy.Ident) {
 					throw new Exception(error(ident, "Invalid list comp, expected an identifier after 'for'."));
 				}
 
-				String name = ident.lexeme;
+				String name = lexeme(ident);
 
 				assertNext(TokenTy.In);
 
@@ -223,7 +294,7 @@ public class Parser {
 					assertNext(TokenTy.RBracket);
 					return fmap;
 				}
-			} else if (peek().ty == TokenTy.DotDot) {
+			} else if (ty(peek()) == TokenTy.DotDot) {
 				// range literal
 				assertNext(TokenTy.DotDot);
 
@@ -240,7 +311,7 @@ public class Parser {
 				ArrayList<Expr> out = new ArrayList<>();
 				out.add(first);
 
-				if (peek().ty != TokenTy.RBracket) {
+				if (ty(peek()) != TokenTy.RBracket) {
 					while (expect(TokenTy.Comma)) {
 						out.add(exprBP(0));
 					}
@@ -250,37 +321,45 @@ public class Parser {
 				return new Expr.AtomicExpr(new Atom.List(out));
 			}
 		} else {
-			Token t = peek();
+			int t = peek();
 			assertNext(TokenTy.RBracket);
-			return new Expr.AtomicExpr(new Atom.List(new ArrayList<>()), nx.index, t.index + t.length);
+			return new Expr.AtomicExpr(new Atom.List(new ArrayList<>()), index(nx), index(t) + length(t));
 		}
 	}
 
 	private Expr parseList() throws Exception {
-		return parseList(Token.EOF(position, line, column));
+		return parseList(EOF);
 	}
 
-	private Expr parseBlock(Token nx) throws Exception {
+	private Expr parseBlock(int nx) throws Exception {
 		/*
 		 * assertNext(TokenTy.LCurlyBracket); ArrayList<Expr> exprs = new ArrayList<>();
-		 * while (peek().ty != TokenTy.RCurlyBracket) { exprs.add(exprBP(0)); } Token t
+		 * while (ty(peek()) != TokenTy.RCurlyBracket) { exprs.add(exprBP(0)); } int t
 		 * = peek(); assertNext(TokenTy.RCurlyBracket);
 		 */
 		ArrayList<Expr> exprs = exprBPs(0, true, TokenTy.RCurlyBracket);
-		Token blockEnd = peek();
+		int blockEnd = peek();
+		assertNext(TokenTy.RCurlyBracket);
+		return new Expr.BlockExpr(exprs, index(nx), index(blockEnd));
+	}
+
+	private Expr parseParBlock(int nx) throws Exception {
+		assertNext(TokenTy.LCurlyBracket);
+		ArrayList<Expr> exprs = exprBPs(0, true, TokenTy.RCurlyBracket);
+		int blockEnd = peek();
 		assertNext(TokenTy.RCurlyBracket);
-		return new Expr.BlockExpr(exprs, nx.index, blockEnd.index);
+		return new Expr.ParBlockExpr(exprs, index(nx), index(blockEnd));
 	}
 
-	private ArrayList<String> parseDotIdentifierList(Token nx) throws Exception {
-		if (nx.ty != TokenTy.Ident) {
+	private ArrayList<String> parseDotIdentifierList(int nx) throws Exception {
+		if (ty(nx) != TokenTy.Ident) {
 			throw new Exception(error(nx, "Expected an identifier."));
 		}
 		ArrayList<String> identifiers = new ArrayList<>();
-		identifiers.add(nx.lexeme);
-		while (peek().ty == TokenTy.Ident) {
-			identifiers.add(eat().lexeme);
-			if (peek().ty != TokenTy.Dot) {
+		identifiers.add(lexeme(nx));
+		while (ty(peek()) == TokenTy.Ident) {
+			identifiers.add(lexeme(eat()));
+			if (ty(peek()) != TokenTy.Dot) {
 				break;
 			}
 		}
@@ -291,7 +370,7 @@ public class Parser {
 		assertNext(TokenTy.LParen);
 		ArrayList<Expr> out = new ArrayList<>();
 
-		if (peek().ty != TokenTy.RParen) {
+		if (ty(peek()) != TokenTy.RParen) {
 			do {
 				out.add(exprBP(0));
 			} while (expect(TokenTy.Comma));
@@ -301,9 +380,9 @@ public class Parser {
 		return out;
 	}
 
-	private Expr parseLetExpr(Token nx) throws Exception {
-		Token ident = eat();
-		if (ident.ty != TokenTy.Ident) {
+	private Expr parseLetExpr(int nx) throws Exception {
+		int ident = eat();
+		if (ty(ident) != TokenTy.Ident) {
 			throw new Exception(error(ident, "Invalid let expression"));
 		}
 
@@ -311,24 +390,24 @@ public class Parser {
 
 		Expr rhs = exprBP(0);
 		if (rhs instanceof Expr.AtomicExpr && ((Expr.AtomicExpr) rhs).val instanceof Atom.Lambda) {
-			((Atom.Lambda) ((Expr.AtomicExpr) rhs).val).setName(ident.lexeme);
+			((Atom.Lambda) ((Expr.AtomicExpr) rhs).val).setName(lexeme(ident));
 		}
 
-		return new Expr.AssignExpr(ident.lexeme, rhs, nx.index, rhs.endIndex);
+		return new Expr.AssignExpr(lexeme(ident), rhs, index(nx), rhs.endIndex);
 	}
 
 	private Expr parseLetExpr() throws Exception {
-		return parseLetExpr(Token.EOF(position, line, column));
+		return parseLetExpr(EOF);
 	}
 
-	private Expr parsePublicExpr(Token nx) throws Exception {
+	private Expr parsePublicExpr(int nx) throws Exception {
 		Expr expr = exprBP(0);
-		return new Expr.PublicExpr(expr, nx.index, expr.endIndex);
+		return new Expr.PublicExpr(expr, index(nx), expr.endIndex);
 	}
 
-	private Expr parseVariationExpr(Token nx) throws Exception {
-		Token ident = eat();
-		if (ident.ty != TokenTy.Ident) {
+	private Expr parseVariationExpr(int nx) throws Exception {
+		int ident = eat();
+		if (ty(ident) != TokenTy.Ident) {
 			throw new Exception(error(ident, "Invalid var expression"));
 		}
 
@@ -336,21 +415,21 @@ public class Parser {
 
 		Expr rhs = exprBP(0);
 
-		return new Expr.VariationExpr(ident.lexeme, rhs, nx.index, rhs.endIndex);
+		return new Expr.VariationExpr(lexeme(ident), rhs, index(nx), rhs.endIndex);
 	}
 
-	private Expr parseLambdaExpr(Token next) throws Exception {
+	private Expr parseLambdaExpr(int next) throws Exception {
 		assertNext(TokenTy.LParen);
 
 		ArrayList<String> argNames = new ArrayList<>();
 
-		if (peek().ty != TokenTy.RParen) {
+		if (ty(peek()) != TokenTy.RParen) {
 			do {
-				Token nx = eat();
-				if (nx.ty != TokenTy.Ident) {
-					throw new Exception(error(nx, String.format("Unexpected %s", nx.toString())));
+				int nx = eat();
+				if (ty(nx) != TokenTy.Ident) {
+					throw new Exception(error(nx, String.format("Unexpected %s", describe(nx))));
 				}
-				argNames.add(nx.lexeme);
+				argNames.add(lexeme(nx));
 			} while (expect(TokenTy.Comma));
 		}
 		assertNext(TokenTy.RParen);
@@ -359,11 +438,11 @@ public class Parser {
 
 		Expr expr = exprBP(0);
 
-		return new Expr.AtomicExpr(new Atom.Lambda(expr, argNames), next.index, expr.endIndex);
+		return new Expr.AtomicExpr(new Atom.Lambda(expr, argNames), index(next), expr.endIndex);
 	}
 
 	private Expr parseLambdaExpr() throws Exception {
-		return parseLambdaExpr(Token.EOF(position, line, column));
+		return parseLambdaExpr(EOF);
 	}
 
 	private Expr exprBP(int minBP) throws Exception {
@@ -371,39 +450,42 @@ public class Parser {
 	}
 
 	private Expr exprBP(int minBP, boolean allowWhiteSpace) throws Exception {
-		Token nx = eat();
-		int s = nx.index;
-		Expr lhs = switch (nx.ty) {
-			case True -> new Expr.AtomicExpr(new Atom.Bool(true), s, s + nx.lexeme.length());
-			case False -> new Expr.AtomicExpr(new Atom.Bool(false), s, s + nx.lexeme.length());
-			case Integer -> new Expr.AtomicExpr(new Atom.Integer(Integer.parseInt(nx.lexeme)), s,
-					s + nx.lexeme.length());
-			case Float -> new Expr.AtomicExpr(new Atom.Float(Float.parseFloat(nx.lexeme)), s, s + nx.lexeme.length());
+		int nx = eat();
+		int s = index(nx);
+		Expr lhs = switch (ty(nx)) {
+			case True -> new Expr.AtomicExpr(new Atom.Bool(true), s, s + length(nx));
+			case False -> new Expr.AtomicExpr(new Atom.Bool(false), s, s + length(nx));
+			case Integer -> new Expr.AtomicExpr(new Atom.Integer(tokens.intValue(nx)), s, s + length(nx));
+			case Float -> new Expr.AtomicExpr(new Atom.Float(Float.parseFloat(lexeme(nx))), s, s + length(nx));
 			case Ident -> {
-				if (peek().ty == TokenTy.LParen) {
+				String name = lexeme(nx);
+				if (ty(peek()) == TokenTy.LParen) {
 					ArrayList<Expr> vars = parseCallArgs();
 					if (vars.size() > 0)
-						yield new Expr.LambdaCall(new Atom.Ident(nx.lexeme), vars, vars.get(0).startIndex,
+						yield new Expr.LambdaCall(new Atom.Ident(name), vars, vars.get(0).startIndex,
 								vars.get(vars.size() - 1).endIndex);
-					yield new Expr.LambdaCall(new Atom.Ident(nx.lexeme), vars);
+					yield new Expr.LambdaCall(new Atom.Ident(name), vars);
 				} else {
-					yield new Expr.AtomicExpr(new Atom.Ident(nx.lexeme), s, s + nx.lexeme.length());
+					yield new Expr.AtomicExpr(new Atom.Ident(name), s, s + length(nx));
 				}
 			}
 			case IdentList -> {
-				String[] identifiers = nx.lexeme.split("\\.");
-				if (peek().ty == TokenTy.LParen) {
+				String[] identifiers = lexeme(nx).split("\\.");
+				if (ty(peek()) == TokenTy.LParen) {
 					ArrayList<Expr> vars = parseCallArgs();
 					if (vars.size() > 0)
 						yield new Expr.LambdaCall(new Atom.IdentList(identifiers), vars, vars.get(0).startIndex,
 								vars.get(vars.size() - 1).endIndex);
 					yield new Expr.LambdaCall(new Atom.IdentList(identifiers), vars);
 				} else {
-					yield new Expr.AtomicExpr(new Atom.IdentList(identifiers), s, s + nx.lexeme.length());
+					yield new Expr.AtomicExpr(new Atom.IdentList(identifiers), s, s + length(nx));
 				}
 			}
-			case Character -> new Expr.AtomicExpr(new Atom.Char(nx.lexeme.charAt(0)), s, s + nx.lexeme.length());
-			case String -> new Expr.AtomicExpr(new Atom.Str(nx.lexeme), s, s + nx.lexeme.length());
+			case Character -> new Expr.AtomicExpr(new Atom.Char(lexeme(nx).charAt(0)), s, s + 1);
+			case String -> {
+				String value = lexeme(nx);
+				yield new Expr.AtomicExpr(new Atom.Str(value), s, s + value.length());
+			}
 			case Let -> parseLetExpr(nx);
 			case Pub -> parsePublicExpr(nx);
 			case Variation -> parseVariationExpr(nx);
@@ -412,6 +494,8 @@ public class Parser {
 			case Module -> parseModuleExpr(nx);
 			case Import -> parseImportExpr(nx);
 			case Match -> parseMatchExpr(nx);
+			case Loop -> parseLoopExpr(nx);
+			case Par -> parseParBlock(nx);
 			case LBracket -> parseList(nx);
 			case LParen -> {
 				Expr temp = exprBP(0);
@@ -420,7 +504,7 @@ public class Parser {
 			}
 			case LCurlyBracket -> parseBlock(nx);
 			case Sub, Caret, Dollar -> {
-				PrefixOp op = switch (nx.ty) {
+				PrefixOp op = switch (ty(nx)) {
 					case Sub -> PrefixOp.Negate;
 					case Caret -> PrefixOp.Head;
 					case Dollar -> PrefixOp.Tail;
@@ -432,16 +516,16 @@ public class Parser {
 				yield new Expr.PrefixExpr(op, rhs, s, rhs.endIndex);
 			}
 			default -> {
-				if (allowWhiteSpace && (nx.ty == TokenTy.EOF || nx.ty == TokenTy.NL))
+				if (allowWhiteSpace && (ty(nx) == TokenTy.EOF || ty(nx) == TokenTy.NL))
 					yield new Expr.AtomicExpr(new Atom.Unit(), s, s + 1);
 				else
-					throw new Exception(error(nx, String.format("Expected an expression, found: %s", nx.toString())));
+					throw new Exception(error(nx, String.format("Expected an expression, found: %s", describe(nx))));
 			}
 		};
 
 		for (;;) {
-			Token opToken = peek();
-			BinOp op = switch (opToken.ty) {
+			int opToken = peek();
+			BinOp op = switch (ty(opToken)) {
 				case Add -> BinOp.Add;
 				case Sub -> BinOp.Sub;
 				case Mul -> BinOp.Mul;
@@ -485,37 +569,71 @@ public class Parser {
 
 	private ArrayList<Expr> exprBPs(int minBP, boolean allowWhiteSpace, TokenTy closing) throws Exception {
 		ArrayList<Expr> exprs = new ArrayList<>();
-		Token n;
-		Token s = peek(false);
+		int n;
+		int s = peek(false);
 		while (!isFinished()) {
-			if (closing != null && (s.ty == closing || peek(true).ty == closing)) {
+			if (closing != null && (ty(s) == closing || ty(peek(true)) == closing)) {
 				break;
 			}
 			Expr e = exprBP(0, true);
 			exprs.add(e);
 			n = peek(false);
-			if (n.ty == TokenTy.EOF || (closing != null && n.ty == closing))
+			if (ty(n) == TokenTy.EOF || (closing != null && ty(n) == closing))
 				break;
-			if (!(n.ty == TokenTy.SColon || n.ty == TokenTy.NL))
+			if (!(ty(n) == TokenTy.SColon || ty(n) == TokenTy.NL))
 				throw new Exception(
-						error(n, "Unexpected token " + n.toString() + "! Expressions must end with ';' or newline"));
+						error(n, "Unexpected token " + describe(n) + "! Expressions must end with ';' or newline"));
 			s = eat(false); // Eat n, the separating '\n' or ';'
 		}
 		return exprs;
 	}
 
-	public static Expr parseExpr(String input) throws Exception {
-		ArrayList<Token> tokens = Tokenizer.tokenize(input);
-		Parser p = new Parser(tokens);
+	/**
+	 * Parse the next top-level expression, and discard the tokens it was parsed
+	 * from.
+	 *
+	 * @return The expression, or null at the end of the input.
+	 */
+	public Expr nextExpr() throws Exception {
+		if (done || isFinished()) {
+			return null;
+		}
+		Expr e = exprBP(0, true);
+		int n = peek(false);
+		if (ty(n) == TokenTy.EOF) {
+			done = true;
+		} else if (ty(n) == TokenTy.SColon || ty(n) == TokenTy.NL) {
+			eat(false); // Eat n, the separating '\n' or ';'
+		} else {
+			throw new Exception(
+					error(n, "Unexpected token " + describe(n) + "! Expressions must end with ';' or newline"));
+		}
+		tokens.discard(position);
+		return e;
+	}
+
+	/**
+	 * Create a parser that reads the top-level expressions of the input one at a
+	 * time with nextExpr, tokenizing only as much of the input as it needs.
+	 */
+	public static Parser stream(CharSequence input) {
+		return new Parser(new Tokenizer(input));
+	}
+
+	public static Expr parseExpr(CharSequence input) throws Exception {
+		Parser p = new Parser(new Tokenizer(input));
 
 		return p.exprBP(0, true);
 	}
 
-	public static ArrayList<Expr> parseExprs(String input) throws Exception {
-		ArrayList<Token> tokens = Tokenizer.tokenize(input);
-		Parser p = new Parser(tokens);
+	public static ArrayList<Expr> parseExprs(CharSequence input) throws Exception {
+		Parser p = stream(input);
+		ArrayList<Expr> exprs = new ArrayList<>();
 
-		return p.exprBPs(0, true);
+		for (Expr e = p.nextExpr(); e != null; e = p.nextExpr()) {
+			exprs.add(e);
+		}
+		return exprs;
 	}
 
 	public static void testParser() throws Exception {
@@ -527,42 +645,36 @@ public class Parser {
 
 		{
 			// tests parseIfExpr
-			ArrayList<Token> tokens = Tokenizer.tokenize("(1) then (2) else (5)");
-			Parser p = new Parser(tokens);
+			Parser p = new Parser(new Tokenizer("(1) then (2) else (5)"));
 			Expr.IfExpr expr = (Expr.IfExpr) p.parseIfExpr();
 			assert expr.toString().equals("if (1) then (2) else (5)");
 		}
 
 		{
 			// tests parseList
-			ArrayList<Token> tokens = Tokenizer.tokenize("1, 3, 2, 4]");
-			Parser p = new Parser(tokens);
+			Parser p = new Parser(new Tokenizer("1, 3, 2, 4]"));
 			Expr.AtomicExpr expr = (Expr.AtomicExpr) p.parseList();
 			assert expr.toString().equals("[1, 3, 2, 4]");
 
-			ArrayList<Token> tokensRange = Tokenizer.tokenize("0..10]");
-			Parser parserRange = new Parser(tokensRange);
+			Parser parserRange = new Parser(new Tokenizer("0..10]"));
 			Expr.LambdaCall exprRange = (Expr.LambdaCall) parserRange.parseList();
 			assert exprRange.toString().equals("range([0, 10])");
 
-			ArrayList<Token> tokensComp = Tokenizer.tokenize("x * 2 for x in [2..5]]");
-			Parser parserComp = new Parser(tokensComp);
+			Parser parserComp = new Parser(new Tokenizer("x * 2 for x in [2..5]]"));
 			Expr.LambdaCall exprComp = (Expr.LambdaCall) parserComp.parseList();
-			assert exprComp.toString().equals("fmap([Lambda {expr: Mul, (\"x\", 2), argNames: [x]}, range([2, 5])])");
+			assert exprComp.toString().equals("fmap([Lambda[null] {\n\t{argNames: [x], expr: Mul, (x, 2)}\n}, range([2, 5])])");
 		}
 
 		{
 			// tests parseCallArgs
-			ArrayList<Token> tokens = Tokenizer.tokenize("(2, 4, 6, 8, fib)");
-			Parser p = new Parser(tokens);
+			Parser p = new Parser(new Tokenizer("(2, 4, 6, 8, fib)"));
 			ArrayList<Expr> out = p.parseCallArgs();
-			assert out.toString().equals("[2, 4, 6, 8, \"fib\"]");
+			assert out.toString().equals("[2, 4, 6, 8, fib]");
 		}
 
 		{
 			// tests parseLetExpr
-			ArrayList<Token> tokens = Tokenizer.tokenize("x = 5");
-			Parser p = new Parser(tokens);
+			Parser p = new Parser(new Tokenizer("x = 5"));
 			Expr.AssignExpr expr = (Expr.AssignExpr) p.parseLetExpr();
 			assert expr.toString().equals("let x = 5");
 		}
@@ -570,7 +682,7 @@ public class Parser {
 		{
 			// tests arbitrary arithmetic expr with order of operations
 			Expr expr = parseExpr("x + 3 * 5 - 2 / 4");
-			assert expr.toString().equals("Sub, (Add, (\"x\", Mul, (3, 5)), Div, (2, 4))");
+			assert expr.toString().equals("Sub, (Add, (x, Mul, (3, 5)), Div, (2, 4))");
 		}
 	}
 }
@@ -0,0 +1,217 @@
+package core;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+
+import core.util.FileHelper;
+
+/**
+ * The ProgramCompiler compiles script files ahead of time into a runnable jar.
+ * The jar contains the parsed expressions of the files, every file they import
+ * or run as an isolate and all built-ins, together with the classes needed to
+ * evaluate them. The tokenizer and parser are left out, as nothing has to be
+ * parsed when the jar is run, so isolates must be given a file name written in
+ * the program.
+ */
+public class ProgramCompiler {
+	/**
+	 * Classes only used to parse source code, which are not needed in a compiled
+	 * program.
+	 */
+	private static final List<String> PARSER_CLASSES = List.of("Tokenizer", "Token", "TokenTy", "TokenBuffer",
+			"Parser", "BindingPower", "PrefixBindingPower", "AstCache", "ProgramCompiler");
+
+	/**
+	 * Parse the script files and all files they import.
+	 *
+	 * @param filePaths The script files to compile, in the order they are run.
+	 * @return The compiled program.
+	 * @throws Exception If a file cannot be read or parsed.
+	 */
+	public static CompiledProgram compile(List<Path> filePaths) throws Exception {
+		LinkedHashMap<Path, ArrayList<Expr>> files = new LinkedHashMap<>();
+		LinkedHashMap<Path, ArrayList<Expr>> modules = new LinkedHashMap<>();
+		for (Path filePath : filePaths) {
+			Path path = filePath.toAbsolutePath().normalize();
+			ArrayList<Expr> exprs = parseFile(path);
+			files.put(path, exprs);
+			addImports(exprs, path.getParent(), modules);
+		}
+		return new CompiledProgram(Interpreter.getKernelNames(), Interpreter.getBuiltinDefinitions(), modules, files);
+	}
+
+	/**
+	 * Write a compiled program to a runnable jar.
+	 *
+	 * @param program The compiled program.
+	 * @param jarPath The jar file to write.
+	 * @throws IOException If the classes of the interpreter cannot be found or
+	 *                     the jar cannot be written.
+	 */
+	public static void writeJar(CompiledProgram program, Path jarPath) throws IOException {
+		Manifest manifest = new Manifest();
+		manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, CompiledProgram.class.getName());
+		try (JarOutputStream jar = new JarOutputStream(new BufferedOutputStream(Files.newOutputStream(jarPath)),
+				manifest)) {
+			copyClasses(jar);
+			jar.putNextEntry(new JarEntry(CompiledProgram.RESOURCE));
+			program.write(jar);
+			jar.closeEntry();
+		}
+	}
+
+	private static ArrayList<Expr> parseFile(Path filePath) throws Exception {
+		try {
+			return Parser.parseExprs(FileHelper.mapFile(filePath));
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new Exception(String.format("Syntax error in '%s':\n%s", filePath.getFileName(), e.getMessage()));
+		}
+	}
+
+	/**
+	 * Parse all files imported or run as isolates anywhere in the expressions,
+	 * and the files they import. Files are keyed by the same path they are
+	 * imported by when the program is run.
+	 *
+	 * @throws Exception If a file cannot be parsed, or an isolate is not given a
+	 *                   file name written in the program.
+	 */
+	private static void addImports(List<Expr> exprs, Path directory, LinkedHashMap<Path, ArrayList<Expr>> modules)
+			throws Exception {
+		ArrayList<String> fileNames = new ArrayList<>();
+		ArrayList<Expr> dynamicIsolates = new ArrayList<>();
+		for (Expr expr : exprs) {
+			ImportSlicer.walk(expr, e -> {
+				if (e instanceof Expr.ImportExpr) {
+					fileNames.add(((Expr.ImportExpr) e).fileName);
+				} else if (isIsolateCall(e)) {
+					ArrayList<Expr> args = ((Expr.LambdaCall) e).variables;
+					if (args.size() == 1 && args.get(0) instanceof Expr.AtomicExpr
+							&& ((Expr.AtomicExpr) args.get(0)).val instanceof Atom.Str) {
+						fileNames.add(((Atom.Str) ((Expr.AtomicExpr) args.get(0)).val).getStringValue(false));
+					} else {
+						dynamicIsolates.add(e);
+					}
+				}
+			}, true);
+		}
+		if (!dynamicIsolates.isEmpty()) {
+			throw new Exception(String.format(
+					"Compiled programs cannot parse files, so isolate must be given a file name written in the program: %s",
+					dynamicIsolates.get(0)));
+		}
+		for (String fileName : fileNames) {
+			Path filePath = directory.resolve(fileName).toAbsolutePath().normalize();
+			if (!modules.containsKey(filePath)) {
+				ArrayList<Expr> moduleExprs = parseFile(filePath);
+				modules.put(filePath, moduleExprs);
+				addImports(moduleExprs, filePath.getParent(), modules);
+			}
+		}
+	}
+
+	private static boolean isIsolateCall(Expr expr) {
+		return expr instanceof Expr.LambdaCall && ((Expr.LambdaCall) expr).identifier instanceof Atom.Ident
+				&& ((Atom.Ident) ((Expr.LambdaCall) expr).identifier).name.equals("isolate");
+	}
+
+	/**
+	 * Copy the classes of the interpreter from the directory or jar they are
+	 * loaded from.
+	 */
+	private static void copyClasses(JarOutputStream jar) throws IOException {
+		Path source;
+		try {
+			source = Paths.get(ProgramCompiler.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+		} catch (URISyntaxException | NullPointerException e) {
+			throw new IOException("Could not find the classes of the interpreter");
+		}
+		if (Files.isDirectory(source)) {
+			try (Stream<Path> classFiles = Files.walk(source.resolve("core"))) {
+				for (Path classFile : (Iterable<Path>) classFiles.filter(ProgramCompiler::isClassFile)::iterator) {
+					String name = source.relativize(classFile).toString().replace('\\', '/');
+					if (isRuntimeClass(name)) {
+						try (InputStream in = Files.newInputStream(classFile)) {
+							copyEntry(jar, name, in);
+						}
+					}
+				}
+			}
+		} else {
+			try (JarFile sourceJar = new JarFile(source.toFile())) {
+				Enumeration<JarEntry> entries = sourceJar.entries();
+				while (entries.hasMoreElements()) {
+					JarEntry entry = entries.nextElement();
+					if (entry.getName().startsWith("core/") && entry.getName().endsWith(".class")
+							&& isRuntimeClass(entry.getName())) {
+						try (InputStream in = sourceJar.getInputStream(entry)) {
+							copyEntry(jar, entry.getName(), in);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	private static boolean isClassFile(Path path) {
+		return Files.isRegularFile(path) && path.toString().endsWith(".class");
+	}
+
+	private static boolean isRuntimeClass(String name) {
+		String className = name.substring(name.lastIndexOf('/') + 1, name.length() - ".class".length());
+		int nested = className.indexOf('$');
+		String outerName = nested == -1 ? className : className.substring(0, nested);
+		return !(name.equals("core/" + className + ".class") && PARSER_CLASSES.contains(outerName));
+	}
+
+	private static void copyEntry(JarOutputStream jar, String name, InputStream in) throws IOException {
+		jar.putNextEntry(new JarEntry(name));
+		in.transferTo(jar);
+		jar.closeEntry();
+	}
+
+	public static void testProgramCompiler() throws Exception {
+		Path dir = Files.createTempDirectory("rsc-test");
+		Files.writeString(dir.resolve("shared.rs"), "pub let double = fn (n) => n * 2");
+		Files.writeString(dir.resolve("left.rs"), "imp double from \"shared.rs\"\npub let left = fn (n) => double(n) + 1");
+		Files.writeString(dir.resolve("cycle.rs"), "imp cycle from \"cycle.rs\"\npub let cycle = 1");
+
+		{
+			// compiled programs contain all imported files and built-ins
+			CompiledProgram program = compile(List.of(dir.resolve("left.rs")));
+			ByteArrayOutputStream compiled = new ByteArrayOutputStream();
+			program.write(compiled);
+			CompiledProgram loaded = CompiledProgram.read(new ByteArrayInputStream(compiled.toByteArray()));
+			assert loaded.getModules().containsKey(dir.resolve("shared.rs").toAbsolutePath().normalize());
+			assert loaded.getFiles().toString().equals(program.getFiles().toString());
+		}
+
+		{
+			// imports in lambda bodies and isolated files are compiled too
+			Files.writeString(dir.resolve("nested.rs"), "let f = fn (n) => { imp left from \"left.rs\"; left(n) }\nlet w = isolate(\"cycle.rs\")");
+			CompiledProgram nested = compile(List.of(dir.resolve("nested.rs")));
+			assert nested.getModules().containsKey(dir.resolve("shared.rs").toAbsolutePath().normalize());
+			assert nested.getModules().containsKey(dir.resolve("cycle.rs").toAbsolutePath().normalize());
+		}
+	}
+}
@@ -3,4 +3,12 @@ import java.util.ArrayList;
 
 public interface ProgramFunction {
     public Atom call(ArrayList<Atom> args) throws Exception;
+
+    /**
+     * Call the function from the scope of the caller. Functions depending on
+     * where they are called from override this.
+     */
+    public default Atom call(ArrayList<Atom> args, Scope scope) throws Exception {
+        return call(args);
+    }
 }
\ No newline at end of file
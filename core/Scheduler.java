@@ -0,0 +1,376 @@
+package core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
+
+import core.util.Threads;
+
+/**
+ * Runs many evaluations while only letting a fixed number of them use the CPU
+ * at once. Every evaluation belongs to a tenant, and running evaluations yield
+ * at calls and loop iterations when their time slice is used up, so that the
+ * next slice goes to the waiting tenant that has used the least time relative
+ * to its weight. A tenant with weight 2 gets twice the time of a tenant with
+ * weight 1 when both have work waiting, and a tenant running a long script
+ * cannot starve the others.
+ *
+ * <p>
+ * Tenants with a higher priority go first: a worker is only given to a tenant
+ * when no tenant with a higher priority has work waiting, and running
+ * evaluations only yield to evaluations of at least their own priority.
+ * Weights share the time between tenants of the same priority.
+ * </p>
+ *
+ * <p>
+ * Each evaluation runs on a thread of its own, which is a virtual thread when
+ * the Java runtime has them, and only holds a worker while it is running.
+ * Time spent holding a worker is charged to the tenant, including time a
+ * script is blocked on input.
+ * </p>
+ *
+ * <p>
+ * Threads an evaluation waits for, like par branches and imports loaded ahead
+ * of time, yield together with it and their time is charged to it. Lambdas
+ * started with spawn and isolates are not scheduled: they run on threads of
+ * their own, only limited by the limits of the interpreter, and are stopped
+ * when the evaluation that started them ends.
+ * </p>
+ *
+ * <p>
+ * Tenants are forgotten when they have no more evaluations, unless a weight
+ * or priority has been set for them. The time they have used is kept until
+ * they are removed.
+ * </p>
+ */
+public class Scheduler {
+	private final int workers;
+	private final ExecutorService threads = Threads.newExecutor();
+	private final HashMap<String, Tenant> tenants = new HashMap<>();
+	private final HashMap<String, Long> usedTimes = new HashMap<>(); // Nanoseconds used by each tenant, also idle ones
+	private volatile long timeSlice = 10_000_000; // Nanoseconds a task runs before yielding
+	private int running; // Tasks holding a worker
+	private double virtualTime; // Virtual time of the last tenant given a worker
+
+	private static class Tenant {
+		private final String name;
+		private int weight = 1;
+		private int priority = 0;
+		private boolean configured; // Whether a weight or priority was set, keeping the tenant when it is idle
+		private int active; // Tasks submitted and not yet finished
+		private double virtualTime; // Time used divided by weight
+		private final ArrayDeque<Task> waiting = new ArrayDeque<>();
+
+		private Tenant(String name) {
+			this.name = name;
+		}
+	}
+
+	/**
+	 * An evaluation run by the scheduler, which waits for its permit whenever it
+	 * is not given a worker. The threads of the evaluation reach safepoints one
+	 * at a time.
+	 */
+	class Task {
+		private final Tenant tenant;
+		private final Semaphore permit = new Semaphore(0);
+		private final ReentrantLock safepoint = new ReentrantLock();
+		private volatile long sliceStart;
+
+		private Task(Tenant tenant) {
+			this.tenant = tenant;
+		}
+
+		/**
+		 * Called by the governor at safepoints. Yields the worker to another task
+		 * if the time slice is used up and other tasks are waiting.
+		 */
+		void safepoint() {
+			if (System.nanoTime() - sliceStart < timeSlice) {
+				return;
+			}
+			safepoint.lock();
+			try {
+				if (System.nanoTime() - sliceStart < timeSlice) {
+					return; // Another thread of the evaluation has just yielded
+				}
+				synchronized (Scheduler.this) {
+					charge(this);
+					if (!hasWaiting(tenant.priority)) {
+						return;
+					}
+					running--;
+					tenant.waiting.add(this);
+					grantWorkers();
+				}
+				permit.acquireUninterruptibly();
+				sliceStart = System.nanoTime();
+			} finally {
+				safepoint.unlock();
+			}
+		}
+	}
+
+	/**
+	 * @param workers The number of evaluations running at the same time.
+	 */
+	public Scheduler(int workers) {
+		if (workers < 1) {
+			throw new IllegalArgumentException("The scheduler needs at least one worker");
+		}
+		this.workers = workers;
+	}
+
+	/**
+	 * Set the time an evaluation runs before yielding to waiting ones.
+	 *
+	 * @param millis The time slice in milliseconds.
+	 */
+	public void setTimeSlice(long millis) {
+		this.timeSlice = millis * 1_000_000;
+	}
+
+	/**
+	 * Set the share of time a tenant gets compared to other tenants. Tenants
+	 * have weight 1 until set.
+	 *
+	 * @param tenant The name of the tenant.
+	 * @param weight The weight of the tenant, at least 1.
+	 */
+	public synchronized void setWeight(String tenant, int weight) {
+		if (weight < 1) {
+			throw new IllegalArgumentException("The weight of a tenant must be at least 1");
+		}
+		Tenant t = getTenant(tenant);
+		t.weight = weight;
+		t.configured = true;
+	}
+
+	/**
+	 * Set the priority of a tenant. Waiting evaluations of tenants with a higher
+	 * priority are always given a worker first. Tenants have priority 0 until
+	 * set.
+	 *
+	 * @param tenant   The name of the tenant.
+	 * @param priority The priority of the tenant, higher goes first.
+	 */
+	public synchronized void setPriority(String tenant, int priority) {
+		Tenant t = getTenant(tenant);
+		t.priority = priority;
+		t.configured = true;
+	}
+
+	/**
+	 * Forget the weight, priority and used time of a tenant. A tenant with
+	 * evaluations that are not done yet is forgotten when they are, and the time
+	 * they use from now on is counted again.
+	 *
+	 * @param tenant The name of the tenant.
+	 */
+	public synchronized void removeTenant(String tenant) {
+		usedTimes.remove(tenant);
+		Tenant t = tenants.get(tenant);
+		if (t != null) {
+			t.configured = false;
+			prune(t);
+		}
+	}
+
+	/**
+	 * Evaluate a program on an interpreter for a tenant. The interpreter must not
+	 * be used by anything else until the evaluation is done, and its limits apply
+	 * to the evaluation.
+	 *
+	 * @param tenant                  The name of the tenant the time is charged
+	 *                                to.
+	 * @param interpreter             The interpreter to evaluate with.
+	 * @param exprs                   The parsed program.
+	 * @param sourceFileDirectoryPath Directory to resolve imports from.
+	 * @return The values of all expressions, when the evaluation is done.
+	 */
+	public Future<Atom[]> submit(String tenant, Interpreter interpreter, ArrayList<Expr> exprs,
+			String sourceFileDirectoryPath) {
+		Task task;
+		synchronized (this) {
+			task = new Task(getTenant(tenant));
+		}
+		return threads.submit(() -> {
+			acquire(task);
+			Governor governor = Governor.enter(interpreter.getLimits(), task);
+			try {
+				return interpreter.evalAll(exprs, sourceFileDirectoryPath);
+			} finally {
+				Governor.exit(governor);
+				release(task);
+			}
+		});
+	}
+
+	private void acquire(Task task) {
+		synchronized (this) {
+			Tenant tenant = task.tenant;
+			if (tenant.active++ == 0) {
+				// A tenant that was idle starts from the current virtual time, so that
+				// it cannot make up for the time it did not use
+				tenant.virtualTime = Math.max(tenant.virtualTime, virtualTime);
+			}
+			tenant.waiting.add(task);
+			grantWorkers();
+		}
+		task.permit.acquireUninterruptibly();
+		task.sliceStart = System.nanoTime();
+	}
+
+	private synchronized void release(Task task) {
+		charge(task);
+		task.tenant.active--;
+		running--;
+		prune(task.tenant);
+		grantWorkers();
+	}
+
+	private void prune(Tenant tenant) {
+		if (tenant.active == 0 && !tenant.configured) {
+			tenants.remove(tenant.name);
+		}
+	}
+
+	private void charge(Task task) {
+		long now = System.nanoTime();
+		long used = now - task.sliceStart;
+		usedTimes.merge(task.tenant.name, used, Long::sum);
+		task.tenant.virtualTime += (double) used / task.tenant.weight;
+		task.sliceStart = now;
+	}
+
+	private boolean hasWaiting(int priority) {
+		for (Tenant tenant : tenants.values()) {
+			if (!tenant.waiting.isEmpty() && tenant.priority >= priority) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Give free workers to the waiting tasks of the tenants with the highest
+	 * priority, and among them the least virtual time.
+	 */
+	private void grantWorkers() {
+		while (running < workers) {
+			Tenant next = null;
+			for (Tenant tenant : tenants.values()) {
+				if (!tenant.waiting.isEmpty() && (next == null || tenant.priority > next.priority
+						|| (tenant.priority == next.priority && tenant.virtualTime < next.virtualTime))) {
+					next = tenant;
+				}
+			}
+			if (next == null) {
+				return;
+			}
+			running++;
+			virtualTime = next.virtualTime;
+			next.waiting.poll().permit.release();
+		}
+	}
+
+	private Tenant getTenant(String name) {
+		return tenants.computeIfAbsent(name, Tenant::new);
+	}
+
+	/**
+	 * Get the time each tenant has held a worker, in nanoseconds. Time of running
+	 * evaluations is included up to their last safepoint. Tenants that are idle
+	 * are included until they are removed.
+	 */
+	public synchronized Map<String, Long> getUsedTimes() {
+		return new HashMap<>(usedTimes);
+	}
+
+	/**
+	 * Get the number of evaluations that are waiting for a worker.
+	 */
+	public synchronized int getWaiting() {
+		int waiting = 0;
+		for (Tenant tenant : tenants.values()) {
+			waiting += tenant.waiting.size();
+		}
+		return waiting;
+	}
+
+	/**
+	 * Get the number of evaluations currently holding a worker.
+	 */
+	public synchronized int getRunning() {
+		return running;
+	}
+
+	/**
+	 * Stop accepting evaluations. Submitted evaluations still run to the end.
+	 */
+	public void shutdown() {
+		threads.shutdown();
+	}
+
+	public static void testScheduler() throws Exception {
+		Scheduler scheduler = new Scheduler(1);
+		scheduler.setTimeSlice(1);
+		scheduler.setWeight("light", 4);
+
+		{
+			// scheduled evaluations share one worker between tenants
+			ArrayList<Expr> longLoop = Parser.parseExprs("loop (i = 0) while i < 300000 => { let i = i + 1 }");
+			ArrayList<Expr> shortLoop = Parser.parseExprs("loop (i = 0) while i < 1000 => { let i = i + 1 }");
+			Future<Atom[]> hog = scheduler.submit("hog", new Interpreter(), longLoop, ".");
+			while (scheduler.getRunning() == 0) {
+				Thread.sleep(1);
+			}
+			ArrayList<Future<Atom[]>> light = new ArrayList<>();
+			for (int n = 0; n < 20; n++) {
+				light.add(scheduler.submit("light", new Interpreter(), shortLoop, "."));
+			}
+			for (Future<Atom[]> result : light) {
+				assert ((Atom.Integer) result.get()[0]).val == 1000;
+			}
+			assert ((Atom.Integer) hog.get()[0]).val == 300000;
+		}
+
+		{
+			// idle tenants without a weight are forgotten, but their used time is kept until removed
+			assert scheduler.getUsedTimes().get("light") > 0 && scheduler.getUsedTimes().get("hog") > 0;
+			assert !scheduler.tenants.containsKey("hog");
+			scheduler.removeTenant("light");
+			scheduler.removeTenant("hog");
+			assert scheduler.getUsedTimes().isEmpty() && scheduler.tenants.isEmpty();
+			assert scheduler.getRunning() == 0 && scheduler.getWaiting() == 0;
+		}
+
+		{
+			// evaluations of tenants with a higher priority never yield to lower ones
+			scheduler.setPriority("urgent", 1);
+			Atom.Channel order = new Atom.Channel(2);
+			Interpreter urgent = new Interpreter();
+			urgent.getGlobalScope().set("order", order);
+			Interpreter background = new Interpreter();
+			background.getGlobalScope().set("order", order);
+			Future<Atom[]> first = scheduler.submit("urgent", urgent,
+					Parser.parseExprs("loop (i = 0) while i < 300000 => { let i = i + 1 }\nsend(order, \"urgent\")"), ".");
+			while (scheduler.getRunning() == 0) {
+				Thread.sleep(1);
+			}
+			Future<Atom[]> second = scheduler.submit("background", background,
+					Parser.parseExprs("send(order, \"background\")"), ".");
+			first.get();
+			second.get();
+			assert order.receive(0).toJava().equals("urgent") && order.receive(0).toJava().equals("background");
+			scheduler.removeTenant("urgent");
+			scheduler.removeTenant("background");
+		}
+		scheduler.shutdown();
+	}
+}
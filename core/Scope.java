@@ -1,26 +1,24 @@
 package core;
 
-import java.util.ArrayList;
+import java.nio.file.Path;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Scope {
-	private static int scopeCount = 0;
+	private static final AtomicInteger scopeCount = new AtomicInteger(); // Scopes may be created by many threads
 	protected int scopeId = 0;
 	protected String name;
 	protected Scope parentScope = null;
-	private ArrayList<Scope> childScopes = new ArrayList<Scope>();
+	protected boolean sealed = false;
 
 	protected HashMap<String, Atom> environment;
 
 	protected Scope(String name, Scope parentScope) {
-		this.scopeId = scopeCount++;
+		this.scopeId = scopeCount.getAndIncrement();
 		this.name = name;
 		this.parentScope = parentScope;
 		this.environment = new HashMap<String, Atom>();
-
-		if (this.parentScope != null) {
-			this.parentScope.childScopes.add(this);
-		}
 	}
 
 	/**
@@ -103,6 +101,29 @@ public class Scope {
 		return parentScope != null ? parentScope.getSourceFileDirectory() : null;
 	}
 
+	/**
+	 * Get the files currently being imported, leading up to the file this scope
+	 * belongs to.
+	 */
+	public List<Path> getImportChain() {
+		return parentScope != null ? parentScope.getImportChain() : List.of();
+	}
+
+	/**
+	 * Get the cache of the files imported by the program this scope belongs to.
+	 */
+	public ModuleCache getModuleCache() {
+		return parentScope != null ? parentScope.getModuleCache() : null;
+	}
+
+	/**
+	 * Check if the scope belongs to a file that is speculatively loaded ahead of
+	 * time, in which case no side effects are allowed.
+	 */
+	public boolean isSpeculative() {
+		return parentScope != null && parentScope.isSpeculative();
+	}
+
 	/**
 	 * Set a variable in the current scope.
 	 *
@@ -111,10 +132,66 @@ public class Scope {
 	 * @return The saved value of the variable.
 	 */
 	public Atom set(String name, Atom value) {
+		if (sealed) {
+			throw new RuntimeException(String.format("Cannot set variable %s in sealed %s", name, this.toString()));
+		}
 		environment.put(name, value);
 		return value;
 	}
 
+	/**
+	 * Get a variable that is about to be modified in place, like when adding a
+	 * variation to a lambda. Scopes that share their variables with others must
+	 * return a private copy.
+	 *
+	 * @param name The name of the variable to find.
+	 * @return The variable if found, null otherwise.
+	 */
+	public Atom getMutable(String name) {
+		if (environment.containsKey(name)) {
+			return environment.get(name);
+		}
+		return parentScope != null ? parentScope.getMutable(name) : null;
+	}
+
+	/**
+	 * Copy the current scope and its parent scopes, so that the copy can be used
+	 * by another thread while this one keeps changing. Lambdas bound to a copied
+	 * scope are bound to its copy. Sealed scopes are shared instead of copied.
+	 *
+	 * @return A copy of the scope, or the scope itself if it is sealed.
+	 */
+	public Scope snapshot() {
+		if (sealed) {
+			return this;
+		}
+		Scope copy = new Scope(name, parentScope != null ? parentScope.snapshot() : null);
+		copyEnv(copy);
+		return copy;
+	}
+
+	protected void copyEnv(Scope copy) {
+		for (var variable : environment.entrySet()) {
+			Atom value = variable.getValue();
+			if (value instanceof Atom.Lambda && ((Atom.Lambda) value).getScope() == this) {
+				value = ((Atom.Lambda) value).bind(copy);
+			}
+			copy.environment.put(variable.getKey(), value);
+		}
+	}
+
+	/**
+	 * Seal the current scope, making it immutable. A sealed scope can be shared
+	 * as the parent of any number of scopes, also by several threads at once.
+	 */
+	public void seal() {
+		this.sealed = true;
+	}
+
+	public boolean isSealed() {
+		return this.sealed;
+	}
+
 	/**
 	 * Follow the module path described by the identifier names and return the
 	 * variable located in the deepest scope.
@@ -170,12 +247,14 @@ public class Scope {
 	}
 
 	/**
-	 * Clear the current scope with all scoped variables and all its child scopes.
+	 * Clear all variables of the current scope. Child scopes are not tracked, so
+	 * that scopes of finished calls can be garbage collected.
 	 */
 	public void clear() {
+		if (sealed) {
+			throw new RuntimeException(String.format("Cannot clear sealed %s", this.toString()));
+		}
 		this.environment.clear();
-		childScopes.forEach(Scope::clear);
-		childScopes.clear();
 	}
 
 	public int getID() {
@@ -31,6 +31,10 @@ public class Token {
 	}
 
 	public String toString() {
+		return toString(ty, lexeme);
+	}
+
+	static String toString(TokenTy ty, String lexeme) {
 		return switch (ty) {
 			case Ident -> String.format("Ident '%s'", lexeme);
 			case Integer -> String.format("Integer %s", lexeme);
@@ -61,5 +65,7 @@ enum TokenTy {
 
 	For, In, Dot, DotDot,
 
+	Loop, While, Par,
+
 	SColon, NL, EOF
 }
\ No newline at end of file
@@ -0,0 +1,152 @@
+package core;
+
+import java.util.Arrays;
+
+/**
+ * The tokens of a source, stored as parallel arrays instead of one object per
+ * token. A token is referred to by its index in the buffer, and its lexeme is
+ * only sliced from the source when it is asked for, so tokenizing allocates
+ * nothing per token except for strings and characters with escape sequences.
+ *
+ * <p>
+ * The start of a token is the offset of its lexeme in the source, which for
+ * strings and characters is just after the opening quote. Its line and column
+ * are where the tokenizer was after scanning it.
+ * </p>
+ *
+ * <p>
+ * Tokens the parser is done with can be discarded, so that a buffer over a
+ * large source does not have to hold all of its tokens at once. Tokens keep
+ * their index when earlier ones are discarded.
+ * </p>
+ */
+final class TokenBuffer {
+	private static final TokenTy[] TYPES = TokenTy.values();
+
+	private final CharSequence source;
+	private byte[] types = new byte[64];
+	private int[] starts = new int[64];
+	private int[] lengths = new int[64];
+	private int[] lines = new int[64];
+	private int[] columns = new int[64];
+	private String[] values; // Unescaped lexemes of strings and characters with escapes, or null
+	private int first; // Index of the first token not discarded
+	private int size;
+
+	TokenBuffer(CharSequence source) {
+		this.source = source;
+	}
+
+	int size() {
+		return size;
+	}
+
+	void add(TokenTy ty, int start, int length, int line, int column) {
+		int i = size - first;
+		if (i == types.length) {
+			int capacity = i * 2;
+			types = Arrays.copyOf(types, capacity);
+			starts = Arrays.copyOf(starts, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+			lines = Arrays.copyOf(lines, capacity);
+			columns = Arrays.copyOf(columns, capacity);
+			if (values != null) {
+				values = Arrays.copyOf(values, capacity);
+			}
+		}
+		types[i] = (byte) ty.ordinal();
+		starts[i] = start;
+		lengths[i] = length;
+		lines[i] = line;
+		columns[i] = column;
+		size++;
+	}
+
+	/**
+	 * Discard the tokens before an index, which must not be read again.
+	 */
+	void discard(int before) {
+		int from = before - first;
+		int count = size - before;
+		if (from <= 0) {
+			return;
+		}
+		System.arraycopy(types, from, types, 0, count);
+		System.arraycopy(starts, from, starts, 0, count);
+		System.arraycopy(lengths, from, lengths, 0, count);
+		System.arraycopy(lines, from, lines, 0, count);
+		System.arraycopy(columns, from, columns, 0, count);
+		if (values != null) {
+			System.arraycopy(values, from, values, 0, count);
+			Arrays.fill(values, count, count + from, null);
+		}
+		first = before;
+	}
+
+	/**
+	 * Set the lexeme of the last token, for strings and characters whose lexeme
+	 * differs from their source because of escape sequences.
+	 */
+	void setValue(String value) {
+		if (values == null) {
+			values = new String[types.length];
+		}
+		values[size - 1 - first] = value;
+	}
+
+	TokenTy type(int token) {
+		return TYPES[types[token - first]];
+	}
+
+	int start(int token) {
+		return starts[token - first];
+	}
+
+	int length(int token) {
+		return lengths[token - first];
+	}
+
+	/**
+	 * Get the offset just after the token in the source, including the closing
+	 * quote of strings and characters.
+	 */
+	int end(int token) {
+		TokenTy ty = type(token);
+		return start(token) + length(token) + (ty == TokenTy.String || ty == TokenTy.Character ? 1 : 0);
+	}
+
+	int line(int token) {
+		return lines[token - first];
+	}
+
+	int column(int token) {
+		return columns[token - first];
+	}
+
+	/**
+	 * Get the lexeme of a token, slicing it from the source.
+	 */
+	String lexeme(int token) {
+		if (values != null && values[token - first] != null) {
+			return values[token - first];
+		}
+		int start = start(token);
+		return source.subSequence(start, start + length(token)).toString();
+	}
+
+	/**
+	 * Get the value of an integer token, without slicing its lexeme.
+	 */
+	int intValue(int token) {
+		int start = start(token);
+		return Integer.parseInt(source, start, start + length(token), 10);
+	}
+
+	/**
+	 * Get a token as a Token object.
+	 */
+	Token get(int token) {
+		String lexeme = lexeme(token);
+		return new Token(type(token), lexeme, end(token), lexeme.length(), line(token), column(token));
+	}
+}
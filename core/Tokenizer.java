@@ -1,7 +1,6 @@
 package core;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 
 import core.util.EscapeSequence;
 
@@ -11,18 +10,38 @@ import core.util.EscapeSequence;
  *
  *         The Tokenizer takes a String and turns it into a flat list of Tokens.
  *
+ *         <p>
+ *         It can also produce the tokens one at a time, so that the Parser
+ *         can start before the whole input is tokenized. The input can be any
+ *         CharSequence, like a CharBuffer over a memory-mapped file. Tokens
+ *         are stored in a TokenBuffer, which slices their lexemes from the
+ *         input when they are needed.
+ *         </p>
+ *
  */
 public class Tokenizer {
-	private String input;
+	private static final String[] KEYWORDS = { "if", "then", "else", "let", "var", "fn", "for", "in", "true", "false",
+			"match", "and", "mod", "pub", "imp", "from", "loop", "while", "par" };
+	private static final TokenTy[] KEYWORD_TYPES = { TokenTy.If, TokenTy.Then, TokenTy.Else, TokenTy.Let,
+			TokenTy.Variation, TokenTy.Fn, TokenTy.For, TokenTy.In, TokenTy.True, TokenTy.False, TokenTy.Match,
+			TokenTy.MatchCaseCond, TokenTy.Module, TokenTy.Pub, TokenTy.Import, TokenTy.ImportFrom, TokenTy.Loop,
+			TokenTy.While, TokenTy.Par };
+
+	private CharSequence input;
 	private int position, line, column;
-	private ArrayList<Token> output;
+	private int tokenStart; // Where the token being scanned starts
+	private TokenBuffer tokens;
 
-	private Tokenizer(String input) {
+	Tokenizer(CharSequence input) {
 		this.input = input;
 		this.position = 0;
 		this.line = 1;
 		this.column = 0;
-		this.output = new ArrayList<Token>();
+		this.tokens = new TokenBuffer(input);
+	}
+
+	TokenBuffer getTokens() {
+		return tokens;
 	}
 
 	private boolean isFinished() {
@@ -45,6 +64,8 @@ public class Tokenizer {
 	}
 
 	private boolean expect(char expected) {
+		if (isFinished())
+			return false;
 		char c = input.charAt(position);
 		if (c == expected) {
 			position += 1;
@@ -58,27 +79,21 @@ public class Tokenizer {
 		return "Error at line " + this.line + " column " + this.column + ": " + message;
 	}
 
-	private void addToken(Token t) {
-		this.output.add(t);
-	}
-
-	private void addToken(TokenTy ty, char lexeme) {
-		addToken(new Token(ty, String.valueOf(lexeme), position, 1, line, column));
-	}
-
-	private void addToken(TokenTy ty, String lexeme) {
-		addToken(new Token(ty, lexeme, position, lexeme.length(), line, column));
+	private void addToken(TokenTy ty) {
+		tokens.add(ty, tokenStart, position - tokenStart, line, column);
 	}
 
 	private void scanIdent() throws Exception {
 		int start = position;
 		boolean expectIdentChar = false;
+		boolean isList = false;
 		while (!isFinished() && (Character.isAlphabetic(peek()) || Character.isDigit(peek()) || peek() == '_')) {
 			eat();
 			expectIdentChar = false;
 			if (!isFinished() && peek() == '.') {
 				eat();
 				expectIdentChar = true;
+				isList = true;
 			}
 		}
 
@@ -86,33 +101,39 @@ public class Tokenizer {
 			throw new Exception(error("Expected identifier"));
 		}
 
-		String lexeme = input.substring(start, position);
-
-		switch (lexeme) {
-			case "if" -> addToken(TokenTy.If, lexeme);
-			case "then" -> addToken(TokenTy.Then, lexeme);
-			case "else" -> addToken(TokenTy.Else, lexeme);
-			case "let" -> addToken(TokenTy.Let, lexeme);
-			case "var" -> addToken(TokenTy.Variation, lexeme);
-			case "fn" -> addToken(TokenTy.Fn, lexeme);
-			case "for" -> addToken(TokenTy.For, lexeme);
-			case "in" -> addToken(TokenTy.In, lexeme);
-			case "true" -> addToken(TokenTy.True, lexeme);
-			case "false" -> addToken(TokenTy.False, lexeme);
-			case "match" -> addToken(TokenTy.Match, lexeme);
-			case "and" -> addToken(TokenTy.MatchCaseCond, lexeme);
-			case "mod" -> addToken(TokenTy.Module, lexeme);
-			case "pub" -> addToken(TokenTy.Pub, lexeme);
-			case "imp" -> addToken(TokenTy.Import, lexeme);
-			case "from" -> addToken(TokenTy.ImportFrom, lexeme);
-			default -> {
-				if (lexeme.indexOf('.') > 0) {
-					addToken(TokenTy.IdentList, lexeme);
-				} else {
-					addToken(TokenTy.Ident, lexeme);
-				}
+		tokenStart = start;
+		int keyword = findKeyword(start, position);
+		if (keyword >= 0) {
+			addToken(KEYWORD_TYPES[keyword]);
+		} else if (isList) {
+			addToken(TokenTy.IdentList);
+		} else {
+			addToken(TokenTy.Ident);
+		}
+	}
+
+	/**
+	 * Find the keyword spelled by the input between start and end, without
+	 * allocating a String for it.
+	 *
+	 * @return The index of the keyword in KEYWORDS, or -1 if it is not a keyword.
+	 */
+	private int findKeyword(int start, int end) {
+		int length = end - start;
+		for (int i = 0; i < KEYWORDS.length; i++) {
+			String keyword = KEYWORDS[i];
+			if (keyword.length() != length) {
+				continue;
+			}
+			int j = 0;
+			while (j < length && input.charAt(start + j) == keyword.charAt(j)) {
+				j++;
+			}
+			if (j == length) {
+				return i;
 			}
 		}
+		return -1;
 	}
 
 	private void scanNumber() {
@@ -131,11 +152,11 @@ public class Tokenizer {
 			}
 		}
 
-		String lexeme = input.substring(start, position);
+		tokenStart = start;
 		if (isFloat) {
-			addToken(TokenTy.Float, lexeme);
+			addToken(TokenTy.Float);
 		} else {
-			addToken(TokenTy.Integer, lexeme);
+			addToken(TokenTy.Integer);
 		}
 	}
 
@@ -151,19 +172,19 @@ public class Tokenizer {
 		}
 		if (start == position)
 			throw new Exception(error("Missing character, '' is not valid."));
-		String lexeme = input.substring(start, position);
+		int end = position;
 		if (!isFinished() && peek() == '\'')
 			eat();
 		else
-			throw new Exception(
-					error("Found character with a missing closing apostrophe, did you mean '" + lexeme + "'?"));
+			throw new Exception(error("Found character with a missing closing apostrophe, did you mean '"
+					+ input.subSequence(start, end) + "'?"));
 
-		String characters = EscapeSequence.unescape(lexeme);
-		if (characters.length() > 1)
-			throw new Exception(error("Found invalid character, did you mean \"" + characters + "\"?"));
-		char character = characters.charAt(0);
+		String characters = unescape(start, end);
+		if (characters != null ? characters.length() > 1 : end - start > 1)
+			throw new Exception(error("Found invalid character, did you mean \""
+					+ (characters != null ? characters : input.subSequence(start, end)) + "\"?"));
 
-		addToken(TokenTy.Character, "" + character);
+		addToken(TokenTy.Character, start, end, characters);
 	}
 
 	private void scanString() throws Exception {
@@ -176,16 +197,38 @@ public class Tokenizer {
 			if (escaped && (peek() == '\"' || peek() == '\\'))
 				eat(); // eat escaped apostrophes or backslashes
 		}
-		String lexeme = input.substring(start, position);
+		int end = position;
 		if (!isFinished() && peek() == '"')
 			eat();
 		else
-			throw new Exception(
-					error("Found string with a missing closing quotation mark, did you mean \"" + lexeme + "\"?"));
+			throw new Exception(error("Found string with a missing closing quotation mark, did you mean \""
+					+ input.subSequence(start, end) + "\"?"));
 
-		String string = EscapeSequence.unescape(lexeme);
+		addToken(TokenTy.String, start, end, unescape(start, end));
+	}
 
-		addToken(TokenTy.String, string);
+	/**
+	 * Unescape the lexeme of a string or character.
+	 *
+	 * @return The unescaped lexeme, or null if it has no escape sequences.
+	 */
+	private String unescape(int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (input.charAt(i) == '\\') {
+				return EscapeSequence.unescape(input.subSequence(start, end).toString());
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Add a string or character token, whose lexeme is between the quotes.
+	 */
+	private void addToken(TokenTy ty, int start, int end, String unescaped) {
+		tokens.add(ty, start, end - start, line, column);
+		if (unescaped != null) {
+			tokens.setValue(unescaped);
+		}
 	}
 
 	private void scanComment() {
@@ -195,78 +238,82 @@ public class Tokenizer {
 
 	private void addNextToken() throws Exception {
 		char c = eat();
+		while (c != '\n' && Character.isWhitespace(c)) {
+			if (c == '\t') {
+				column += 4; // tabs are 4 spaces
+			} else {
+				column++;
+			}
+			if (isFinished())
+				return;
+			c = eat();
+		}
+		tokenStart = position - 1;
 		switch (c) {
-			case '(' -> addToken(TokenTy.LParen, c);
-			case ')' -> addToken(TokenTy.RParen, c);
-			case '[' -> addToken(TokenTy.LBracket, c);
-			case ']' -> addToken(TokenTy.RBracket, c);
-			case '{' -> addToken(TokenTy.LCurlyBracket, c);
-			case '}' -> addToken(TokenTy.RCurlyBracket, c);
-			case '+' -> addToken(TokenTy.Add, c);
-			case '-' -> addToken(TokenTy.Sub, c);
-			case '*' -> addToken(TokenTy.Mul, c);
-			case '%' -> addToken(TokenTy.Mod, c);
+			case '(' -> addToken(TokenTy.LParen);
+			case ')' -> addToken(TokenTy.RParen);
+			case '[' -> addToken(TokenTy.LBracket);
+			case ']' -> addToken(TokenTy.RBracket);
+			case '{' -> addToken(TokenTy.LCurlyBracket);
+			case '}' -> addToken(TokenTy.RCurlyBracket);
+			case '+' -> addToken(TokenTy.Add);
+			case '-' -> addToken(TokenTy.Sub);
+			case '*' -> addToken(TokenTy.Mul);
+			case '%' -> addToken(TokenTy.Mod);
 			case '/' -> {
 				if (expect('/')) {
 					scanComment();
 				} else {
-					addToken(TokenTy.Div, c);
+					addToken(TokenTy.Div);
 				}
 			}
-			case '<' -> addToken(TokenTy.LT, c);
-			case '>' -> addToken(TokenTy.GT, c);
-			case ',' -> addToken(TokenTy.Comma, c);
-			case ';' -> addToken(TokenTy.SColon, c);
-			case '^' -> addToken(TokenTy.Caret, c);
-			case '$' -> addToken(TokenTy.Dollar, c);
+			case '<' -> addToken(TokenTy.LT);
+			case '>' -> addToken(TokenTy.GT);
+			case ',' -> addToken(TokenTy.Comma);
+			case ';' -> addToken(TokenTy.SColon);
+			case '^' -> addToken(TokenTy.Caret);
+			case '$' -> addToken(TokenTy.Dollar);
 			case '|' -> {
 				if (expect('|')) {
-					addToken(TokenTy.Or, "||");
+					addToken(TokenTy.Or);
 				} else {
-					addToken(TokenTy.MatchCase, '|');
+					addToken(TokenTy.MatchCase);
 				}
 			}
 			case '&' -> {
 				if (expect('&')) {
-					addToken(TokenTy.And, "&&");
+					addToken(TokenTy.And);
 				} else {
 					throw new Exception(error("Found a single '&', did you mean '&&'?"));
 				}
 			}
 			case '.' -> {
 				if (!isFinished() && expect('.')) {
-					addToken(TokenTy.DotDot, "..");
+					addToken(TokenTy.DotDot);
 				} else {
-					addToken(TokenTy.Dot, '.');
+					addToken(TokenTy.Dot);
 					// throw new Exception(error("Found a single '.', did you mean '..'?"));
 				}
 			}
 			case '=' -> {
 				if (expect('=')) {
-					addToken(TokenTy.EQ, "==");
+					addToken(TokenTy.EQ);
 				} else if (expect('>')) {
-					addToken(TokenTy.Arrow, "=>");
+					addToken(TokenTy.Arrow);
 				} else {
-					addToken(TokenTy.Assign, "=");
+					addToken(TokenTy.Assign);
 				}
 			}
 			case '!' -> {
 				if (expect('=')) {
-					addToken(TokenTy.NEQ, "!=");
+					addToken(TokenTy.NEQ);
 				} else {
 					throw new Exception(error("Found a single '!', did you mean '!='?"));
 				}
 			}
-			case '\n' -> addToken(TokenTy.NL, c);
+			case '\n' -> addToken(TokenTy.NL);
 			default -> {
-				if (Character.isWhitespace(c)) {
-					if (c == '\t') {
-						column += 4; // tabs are 4 spaces
-					} else {
-						column++;
-					}
-					addNextToken();
-				} else if (Character.isAlphabetic(c) || c == '_') {
+				if (Character.isAlphabetic(c) || c == '_') {
 					position -= 1;
 					scanIdent();
 				} else if (Character.isDigit(c)) {
@@ -286,14 +333,36 @@ public class Tokenizer {
 		;
 	}
 
-	public static ArrayList<Token> tokenize(String input) throws Exception {
+	/**
+	 * Scan the next token of the input into the token buffer, skipping whitespace
+	 * and comments.
+	 *
+	 * @return False if the end of the input was reached without a token.
+	 */
+	boolean next() throws Exception {
+		int size = tokens.size();
+		while (tokens.size() == size && !isFinished()) {
+			addNextToken();
+		}
+		return tokens.size() > size;
+	}
+
+	/**
+	 * Get the last scanned token.
+	 */
+	private Token last() {
+		return tokens.get(tokens.size() - 1);
+	}
+
+	public static ArrayList<Token> tokenize(CharSequence input) throws Exception {
 		Tokenizer t = new Tokenizer(input);
+		ArrayList<Token> output = new ArrayList<Token>();
 
-		while (!t.isFinished()) {
-			t.addNextToken();
+		while (t.next()) {
+			output.add(t.last());
 		}
 
-		return t.output;
+		return output;
 	}
 
 	public static void testTokenizer() throws Exception {
@@ -309,20 +378,20 @@ public class Tokenizer {
 			// a non-keyword identifier
 			var t0 = new Tokenizer("valid_identifier");
 			t0.scanIdent();
-			assert t0.output.get(0).ty == TokenTy.Ident;
-			assert t0.output.get(0).lexeme.equals("valid_identifier");
+			assert t0.last().ty == TokenTy.Ident;
+			assert t0.last().lexeme.equals("valid_identifier");
 
 			// keywords
-			String keywords = "if then else let fn for in";
+			String keywords = "if then else let fn for in loop while par";
 			String[] keywordLS = keywords.split(" ");
 			TokenTy[] kwTokens = { TokenTy.If, TokenTy.Then, TokenTy.Else, TokenTy.Let, TokenTy.Fn, TokenTy.For,
-					TokenTy.In };
+					TokenTy.In, TokenTy.Loop, TokenTy.While, TokenTy.Par };
 
 			for (int i = 0; i < keywordLS.length; i += 1) {
 				var t1 = new Tokenizer(keywordLS[i]);
 				t1.scanIdent();
 
-				Token t = t1.output.get(0);
+				Token t = t1.last();
 
 				assert t.ty == kwTokens[i];
 				assert t.lexeme.equals(keywordLS[i]);
@@ -337,7 +406,7 @@ public class Tokenizer {
 				var t1 = new Tokenizer(integers[i]);
 				t1.scanNumber();
 
-				Token t = t1.output.get(0);
+				Token t = t1.last();
 
 				assert t.ty == TokenTy.Integer;
 				assert t.lexeme.equals(integers[i]);
@@ -348,7 +417,7 @@ public class Tokenizer {
 				var t1 = new Tokenizer(floats[i]);
 				t1.scanNumber();
 
-				Token t = t1.output.get(0);
+				Token t = t1.last();
 
 				assert t.ty == TokenTy.Float;
 				assert t.lexeme.equals(floats[i]);
@@ -362,44 +431,44 @@ public class Tokenizer {
 			Tokenizer t = new Tokenizer(input);
 
 			t.addNextToken();
-			assert t.output.get(t.output.size() - 1).ty == TokenTy.For;
-			assert t.output.get(t.output.size() - 1).lexeme.equals("for");
+			assert t.last().ty == TokenTy.For;
+			assert t.last().lexeme.equals("for");
 
 			t.addNextToken();
-			assert t.output.get(t.output.size() - 1).ty == TokenTy.Ident;
-			assert t.output.get(t.output.size() - 1).lexeme.equals("x");
+			assert t.last().ty == TokenTy.Ident;
+			assert t.last().lexeme.equals("x");
 
 			t.addNextToken();
-			assert t.output.get(t.output.size() - 1).ty == TokenTy.In;
-			assert t.output.get(t.output.size() - 1).lexeme.equals("in");
+			assert t.last().ty == TokenTy.In;
+			assert t.last().lexeme.equals("in");
 
 			t.addNextToken();
-			assert t.output.get(t.output.size() - 1).ty == TokenTy.LBracket;
-			assert t.output.get(t.output.size() - 1).lexeme.equals("[");
+			assert t.last().ty == TokenTy.LBracket;
+			assert t.last().lexeme.equals("[");
 
 			t.addNextToken();
-			assert t.output.get(t.output.size() - 1).ty == TokenTy.Integer;
-			assert t.output.get(t.output.size() - 1).lexeme.equals("10");
+			assert t.last().ty == TokenTy.Integer;
+			assert t.last().lexeme.equals("10");
 
 			t.addNextToken();
-			assert t.output.get(t.output.size() - 1).ty == TokenTy.DotDot;
-			assert t.output.get(t.output.size() - 1).lexeme.equals("..");
+			assert t.last().ty == TokenTy.DotDot;
+			assert t.last().lexeme.equals("..");
 
 			t.addNextToken();
-			assert t.output.get(t.output.size() - 1).ty == TokenTy.Integer;
-			assert t.output.get(t.output.size() - 1).lexeme.equals("12");
+			assert t.last().ty == TokenTy.Integer;
+			assert t.last().lexeme.equals("12");
 
 			t.addNextToken();
-			assert t.output.get(t.output.size() - 1).ty == TokenTy.RBracket;
-			assert t.output.get(t.output.size() - 1).lexeme.equals("]");
+			assert t.last().ty == TokenTy.RBracket;
+			assert t.last().lexeme.equals("]");
 
 			t.addNextToken();
-			assert t.output.get(t.output.size() - 1).ty == TokenTy.Integer;
-			assert t.output.get(t.output.size() - 1).lexeme.equals("15");
+			assert t.last().ty == TokenTy.Integer;
+			assert t.last().lexeme.equals("15");
 
 			t.addNextToken();
-			assert t.output.get(t.output.size() - 1).ty == TokenTy.Let;
-			assert t.output.get(t.output.size() - 1).lexeme.equals("let");
+			assert t.last().ty == TokenTy.Let;
+			assert t.last().lexeme.equals("let");
 		}
 
 		{
@@ -430,5 +499,19 @@ public class Tokenizer {
 			assert tokens.get(7).ty == TokenTy.RBracket;
 			assert tokens.get(7).lexeme.equals("]");
 		}
+
+		{
+			// lexemes of strings and characters are unescaped, others are sliced
+			ArrayList<Token> tokens = tokenize("\"a\\tb\" \"ab\" '\\n' 'c' 42");
+			assert tokens.get(0).lexeme.equals("a\tb") && tokens.get(1).lexeme.equals("ab");
+			assert tokens.get(2).lexeme.equals("\n") && tokens.get(3).lexeme.equals("c");
+			assert tokens.get(4).ty == TokenTy.Integer && tokens.get(4).lexeme.equals("42");
+		}
+
+		{
+			// long runs of whitespace are skipped without recursing
+			ArrayList<Token> tokens = tokenize(" ".repeat(100000) + "x // comment\n\t ");
+			assert tokens.size() == 2 && tokens.get(0).lexeme.equals("x") && tokens.get(1).ty == TokenTy.NL;
+		}
 	}
 }
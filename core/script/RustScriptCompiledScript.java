@@ -0,0 +1,32 @@
+package core.script;
+
+import java.util.ArrayList;
+
+import javax.script.CompiledScript;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+import core.Expr;
+
+/**
+ * A parsed RustScript program, which can be evaluated many times without being
+ * parsed again.
+ */
+public class RustScriptCompiledScript extends CompiledScript {
+	private final RustScriptEngine engine;
+	private final ArrayList<Expr> exprs;
+
+	RustScriptCompiledScript(RustScriptEngine engine, ArrayList<Expr> exprs) {
+		this.engine = engine;
+		this.exprs = exprs;
+	}
+
+	public Object eval(ScriptContext context) throws ScriptException {
+		return engine.evalExprs(exprs, context);
+	}
+
+	public ScriptEngine getEngine() {
+		return engine;
+	}
+}
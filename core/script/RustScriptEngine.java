@@ -0,0 +1,336 @@
+package core.script;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.Invocable;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+
+import core.Atom;
+import core.Expr;
+import core.GlobalScope;
+import core.Interpreter;
+import core.Parser;
+import core.util.RoutedInputStream;
+import core.util.RoutedPrintStream;
+
+/**
+ * A script engine running RustScript through the Java scripting API.
+ *
+ * <p>
+ * The variables of a script are kept in the engine scope bindings of the
+ * context it is evaluated in. Before a script is evaluated, all bindings are
+ * set as variables of a new global scope, and afterwards every variable of the
+ * global scope is put back into the engine bindings. Values are converted
+ * between Java and RustScript using Atom.toJava and Atom.fromJava.
+ * </p>
+ *
+ * <p>
+ * Scripts compiled with {@link #compile(String)} are parsed once and can then
+ * be evaluated any number of times, with different bindings and from several
+ * threads at the same time.
+ * </p>
+ *
+ * <p>
+ * While a script is evaluated, its output goes to the writer and error writer
+ * of the context, and it reads its input from the reader of the context. This
+ * is done by routing System.out, System.err and System.in for the evaluating
+ * thread and the threads it starts.
+ * </p>
+ */
+public class RustScriptEngine extends AbstractScriptEngine implements Compilable, Invocable {
+	private final ScriptEngineFactory factory;
+
+	RustScriptEngine(ScriptEngineFactory factory) {
+		this.factory = factory;
+	}
+
+	public RustScriptEngine() {
+		this(new RustScriptEngineFactory());
+	}
+
+	public Object eval(String script, ScriptContext context) throws ScriptException {
+		return compile(script).eval(context);
+	}
+
+	public Object eval(Reader reader, ScriptContext context) throws ScriptException {
+		return eval(read(reader), context);
+	}
+
+	public CompiledScript compile(String script) throws ScriptException {
+		try {
+			return new RustScriptCompiledScript(this, Parser.parseExprs(script));
+		} catch (Exception e) {
+			throw new ScriptException(e.getMessage());
+		}
+	}
+
+	public CompiledScript compile(Reader script) throws ScriptException {
+		return compile(read(script));
+	}
+
+	/**
+	 * Evaluate parsed expressions with the bindings of a context.
+	 *
+	 * @return The value of the last expression, converted to Java.
+	 */
+	Object evalExprs(ArrayList<Expr> exprs, ScriptContext context) throws ScriptException {
+		try {
+			return withStreams(context, () -> {
+				Interpreter i = new Interpreter();
+				GlobalScope scope = i.getGlobalScope();
+				setVariables(scope, context.getBindings(ScriptContext.GLOBAL_SCOPE));
+				setVariables(scope, context.getBindings(ScriptContext.ENGINE_SCOPE));
+				Object fileName = context.getAttribute(ScriptEngine.FILENAME);
+				String directory = fileName != null
+						? java.nio.file.Paths.get(fileName.toString()).toAbsolutePath().getParent().toString()
+						: System.getProperty("user.dir");
+				Atom[] results = i.evalAll(exprs, directory);
+				Bindings bindings = context.getBindings(ScriptContext.ENGINE_SCOPE);
+				for (Map.Entry<String, Atom> variable : scope.getEnv().entrySet()) {
+					bindings.put(variable.getKey(), variable.getValue().toJava());
+				}
+				return results.length > 0 ? results[results.length - 1].toJava() : null;
+			});
+		} catch (ScriptException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new ScriptException(e.getMessage());
+		}
+	}
+
+	public Object invokeFunction(String name, Object... args) throws ScriptException, NoSuchMethodException {
+		Object function = get(name);
+		if (function == null) {
+			try {
+				function = new Interpreter().getGlobalScope().get(name); // A built-in
+			} catch (Exception e) {
+				throw new ScriptException(e.getMessage());
+			}
+		}
+		if (!(function instanceof Atom.Lambda)) {
+			throw new NoSuchMethodException(String.format("No function %s is defined", name));
+		}
+		ArrayList<Atom> arguments = new ArrayList<>();
+		for (Object arg : args) {
+			arguments.add(Atom.fromJava(arg));
+		}
+		Atom.Lambda lambda = (Atom.Lambda) function;
+		try {
+			return withStreams(context, () -> lambda.call(arguments).toJava());
+		} catch (Exception e) {
+			throw new ScriptException(e.getMessage());
+		}
+	}
+
+	public Object invokeMethod(Object thiz, String name, Object... args)
+			throws ScriptException, NoSuchMethodException {
+		throw new NoSuchMethodException("RustScript has no methods, use invokeFunction instead");
+	}
+
+	public <T> T getInterface(Class<T> clasz) {
+		return null; // RustScript functions cannot implement Java interfaces
+	}
+
+	public <T> T getInterface(Object thiz, Class<T> clasz) {
+		return null;
+	}
+
+	public Bindings createBindings() {
+		return new SimpleBindings();
+	}
+
+	public ScriptEngineFactory getFactory() {
+		return factory;
+	}
+
+	private static void setVariables(GlobalScope scope, Bindings bindings) throws ScriptException {
+		if (bindings == null) {
+			return;
+		}
+		for (Map.Entry<String, Object> binding : bindings.entrySet()) {
+			try {
+				scope.set(binding.getKey(), Atom.fromJava(binding.getValue()));
+			} catch (IllegalArgumentException e) {
+				// Java objects without a RustScript value are not visible to scripts
+			}
+		}
+	}
+
+	/**
+	 * Run an evaluation with System.out, System.err and System.in routed to the
+	 * writers and reader of a context.
+	 */
+	private static <T> T withStreams(ScriptContext context, Callable<T> evaluation) throws Exception {
+		RoutedPrintStream.install();
+		RoutedInputStream.install();
+		RoutedPrintStream out = (RoutedPrintStream) System.out;
+		RoutedPrintStream err = (RoutedPrintStream) System.err;
+		RoutedInputStream in = (RoutedInputStream) System.in;
+		OutputStream outerOut = out.getRoute();
+		OutputStream outerErr = err.getRoute();
+		InputStream outerIn = in.getRoute();
+		out.route(new WriterStream(context.getWriter(), out, outerOut));
+		err.route(new WriterStream(context.getErrorWriter(), err, outerErr));
+		in.route(new ReaderStream(context.getReader(), in, outerIn));
+		try {
+			return evaluation.call();
+		} finally {
+			out.flush();
+			err.flush();
+			out.route(outerOut);
+			err.route(outerErr);
+			in.route(outerIn);
+		}
+	}
+
+	/**
+	 * Writes what is printed to a writer. Output is decoded when the print stream
+	 * is flushed, which it is after every print. The writer may itself write to
+	 * the print stream, like the default writer of a context does, so the thread
+	 * is routed back to where it was while writing.
+	 */
+	private static class WriterStream extends OutputStream {
+		private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		private final Writer writer;
+		private final RoutedPrintStream stream;
+		private final OutputStream outer;
+
+		private WriterStream(Writer writer, RoutedPrintStream stream, OutputStream outer) {
+			this.writer = writer;
+			this.stream = stream;
+			this.outer = outer;
+		}
+
+		public synchronized void write(int b) {
+			buffer.write(b);
+		}
+
+		public synchronized void write(byte[] b, int off, int len) {
+			buffer.write(b, off, len);
+		}
+
+		public synchronized void flush() throws IOException {
+			if (buffer.size() == 0) {
+				return;
+			}
+			String text = buffer.toString(Charset.defaultCharset());
+			buffer.reset();
+			stream.route(outer);
+			try {
+				writer.write(text);
+				writer.flush();
+			} finally {
+				stream.route(this);
+			}
+		}
+	}
+
+	/**
+	 * Reads from a reader, encoding what it reads. Like WriterStream, the thread
+	 * is routed back to where it was while the reader is read.
+	 */
+	private static class ReaderStream extends InputStream {
+		private final Reader reader;
+		private final RoutedInputStream stream;
+		private final InputStream outer;
+		private ByteBuffer pending = ByteBuffer.allocate(0);
+
+		private ReaderStream(Reader reader, RoutedInputStream stream, InputStream outer) {
+			this.reader = reader;
+			this.stream = stream;
+			this.outer = outer;
+		}
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+		}
+
+		public synchronized int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!pending.hasRemaining()) {
+				char[] chars = new char[1024];
+				int n;
+				stream.route(outer);
+				try {
+					n = reader.read(chars);
+				} finally {
+					stream.route(this);
+				}
+				if (n < 0) {
+					return -1;
+				}
+				pending = Charset.defaultCharset().encode(CharBuffer.wrap(chars, 0, n));
+			}
+			int n = Math.min(len, pending.remaining());
+			pending.get(b, off, n);
+			return n;
+		}
+	}
+
+	private static String read(Reader reader) throws ScriptException {
+		StringWriter script = new StringWriter();
+		try {
+			reader.transferTo(script);
+		} catch (IOException e) {
+			throw new ScriptException(e);
+		}
+		return script.toString();
+	}
+
+	public static void testRustScriptEngine() throws Exception {
+		ScriptEngine engine = new RustScriptEngineFactory().getScriptEngine();
+
+		{
+			// scripts are compiled once for many bindings
+			CompiledScript script = ((Compilable) engine).compile("let total = x * 2 + sum(xs)\ntotal + 1");
+			SimpleBindings first = new SimpleBindings(new HashMap<>(Map.of("x", 5, "xs", List.of(1, 1))));
+			SimpleBindings second = new SimpleBindings(new HashMap<>(Map.of("x", 10, "xs", List.of())));
+			assert script.eval(first).equals(13) && first.get("total").equals(12);
+			assert script.eval(second).equals(21) && second.get("total").equals(20);
+		}
+
+		{
+			// lambdas are invoked from the host
+			engine.eval("let greet = fn (name) => \"Hello \" + name");
+			assert ((Invocable) engine).invokeFunction("greet", "Java").equals("Hello Java");
+		}
+
+		{
+			// printing and reading use the writer and reader of the context
+			StringWriter output = new StringWriter();
+			engine.getContext().setWriter(output);
+			engine.getContext().setReader(new StringReader("typed\n"));
+			engine.eval("println(\"Hello host\")\nprintln(input(\"? \"))");
+			engine.getContext().setWriter(new PrintWriter(System.out, true));
+			assert output.toString().equals("Hello host\n? typed\n");
+			assert engine.getFactory().getEngineVersion().equals(Interpreter.VERSION);
+		}
+	}
+}
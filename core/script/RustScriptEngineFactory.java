@@ -0,0 +1,73 @@
+package core.script;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+
+import core.Interpreter;
+
+/**
+ * Creates RustScript engines for the Java scripting API, so that RustScript can
+ * be found by a ScriptEngineManager by the name rustscript or the extension rs.
+ */
+public class RustScriptEngineFactory implements ScriptEngineFactory {
+	static final String VERSION = Interpreter.VERSION;
+
+	public String getEngineName() {
+		return "RustScript";
+	}
+
+	public String getEngineVersion() {
+		return VERSION;
+	}
+
+	public List<String> getExtensions() {
+		return List.of("rs");
+	}
+
+	public List<String> getMimeTypes() {
+		return List.of("application/x-rustscript", "text/x-rustscript");
+	}
+
+	public List<String> getNames() {
+		return List.of("rustscript", "RustScript", "rsc");
+	}
+
+	public String getLanguageName() {
+		return "RustScript";
+	}
+
+	public String getLanguageVersion() {
+		return VERSION;
+	}
+
+	public Object getParameter(String key) {
+		return switch (key) {
+			case ScriptEngine.ENGINE -> getEngineName();
+			case ScriptEngine.ENGINE_VERSION -> getEngineVersion();
+			case ScriptEngine.NAME -> getNames().get(0);
+			case ScriptEngine.LANGUAGE -> getLanguageName();
+			case ScriptEngine.LANGUAGE_VERSION -> getLanguageVersion();
+			case "THREADING" -> "MULTITHREADED"; // Parsed scripts are never changed by evaluation
+			default -> null;
+		};
+	}
+
+	public String getMethodCallSyntax(String obj, String m, String... args) {
+		return String.format("%s.%s(%s)", obj, m, String.join(", ", args));
+	}
+
+	public String getOutputStatement(String toDisplay) {
+		return String.format("println(\"%s\")", toDisplay.replace("\\", "\\\\").replace("\"", "\\\""));
+	}
+
+	public String getProgram(String... statements) {
+		return List.of(statements).stream().collect(Collectors.joining("\n"));
+	}
+
+	public ScriptEngine getScriptEngine() {
+		return new RustScriptEngine(this);
+	}
+}
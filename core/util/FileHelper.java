@@ -2,10 +2,14 @@ package core.util;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 public class FileHelper {
 	public static void validateIsFile(Path filePath) throws IOException {
@@ -23,4 +27,65 @@ public class FileHelper {
 		validateIsFile(filePath);
 		return Files.readString(filePath, StandardCharsets.UTF_8);
 	}
+
+	/**
+	 * Read a file by mapping it into memory. Files that only contain ASCII are
+	 * read straight from the mapping, one byte per character, so that their
+	 * content is never copied to the heap. Other files are decoded from the
+	 * mapping. Meant for large files that are tokenized once.
+	 *
+	 * @param filePath The file to read.
+	 * @return The characters of the file.
+	 * @throws IOException If the file cannot be read.
+	 */
+	public static CharSequence mapFile(Path filePath) throws IOException {
+		validateIsFile(filePath);
+		try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+			MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			for (int i = 0; i < bytes.limit(); i++) {
+				if (bytes.get(i) < 0) {
+					return StandardCharsets.UTF_8.decode(bytes);
+				}
+			}
+			return new AsciiSequence(bytes, 0, bytes.limit());
+		}
+	}
+
+	/**
+	 * The characters of ASCII bytes, without copying them.
+	 */
+	private static class AsciiSequence implements CharSequence {
+		private final ByteBuffer bytes;
+		private final int start, end;
+
+		private AsciiSequence(ByteBuffer bytes, int start, int end) {
+			this.bytes = bytes;
+			this.start = start;
+			this.end = end;
+		}
+
+		public int length() {
+			return end - start;
+		}
+
+		public char charAt(int index) {
+			if (index < 0 || index >= end - start) {
+				throw new IndexOutOfBoundsException(index);
+			}
+			return (char) bytes.get(start + index);
+		}
+
+		public CharSequence subSequence(int from, int to) {
+			if (from < 0 || to > end - start || from > to) {
+				throw new IndexOutOfBoundsException();
+			}
+			return new AsciiSequence(bytes, start + from, start + to);
+		}
+
+		public String toString() {
+			byte[] chars = new byte[end - start];
+			bytes.get(start, chars);
+			return new String(chars, StandardCharsets.US_ASCII);
+		}
+	}
 }
@@ -0,0 +1,66 @@
+package core.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream that reads from a stream chosen by the current thread, or
+ * from a default stream if the thread has not chosen any. Installed as
+ * System.in, it lets several programs run at the same time in one process with
+ * their own input.
+ */
+public class RoutedInputStream extends InputStream {
+	private final InputStream fallback;
+	private final InheritableThreadLocal<InputStream> target = new InheritableThreadLocal<>();
+
+	public RoutedInputStream(InputStream fallback) {
+		this.fallback = fallback;
+	}
+
+	/**
+	 * Route everything read by the current thread from a stream.
+	 *
+	 * @param in The stream to read from, or null to read from the default stream.
+	 */
+	public void route(InputStream in) {
+		if (in == null) {
+			target.remove();
+		} else {
+			target.set(in);
+		}
+	}
+
+	/**
+	 * Get the stream the current thread is routed to, or null if it reads from
+	 * the default stream.
+	 */
+	public InputStream getRoute() {
+		return target.get();
+	}
+
+	private InputStream current() {
+		InputStream in = target.get();
+		return in != null ? in : fallback;
+	}
+
+	public int read() throws IOException {
+		return current().read();
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		return current().read(b, off, len);
+	}
+
+	public int available() throws IOException {
+		return current().available();
+	}
+
+	/**
+	 * Install a routed input stream as System.in, unless it already is.
+	 */
+	public static synchronized void install() {
+		if (!(System.in instanceof RoutedInputStream)) {
+			System.setIn(new RoutedInputStream(System.in));
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package core.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * A print stream that writes to a stream chosen by the current thread, or to
+ * a default stream if the thread has not chosen any. Installed as System.out
+ * and System.err, it lets several programs run at the same time in one process
+ * with their own output. Threads started by a thread write to the same stream
+ * as it.
+ */
+public class RoutedPrintStream extends PrintStream {
+	private final InheritableThreadLocal<OutputStream> target;
+
+	private RoutedPrintStream(OutputStream fallback, InheritableThreadLocal<OutputStream> target) {
+		super(new OutputStream() {
+			private OutputStream current() {
+				OutputStream out = target.get();
+				return out != null ? out : fallback;
+			}
+
+			public void write(int b) throws IOException {
+				current().write(b);
+			}
+
+			public void write(byte[] b, int off, int len) throws IOException {
+				current().write(b, off, len);
+			}
+
+			public void flush() throws IOException {
+				current().flush();
+			}
+		}, true);
+		this.target = target;
+	}
+
+	public RoutedPrintStream(OutputStream fallback) {
+		this(fallback, new InheritableThreadLocal<>());
+	}
+
+	/**
+	 * Route everything printed by the current thread to a stream.
+	 *
+	 * @param out The stream to write to, or null to write to the default stream.
+	 */
+	public void route(OutputStream out) {
+		if (out == null) {
+			target.remove();
+		} else {
+			target.set(out);
+		}
+	}
+
+	/**
+	 * Get the stream the current thread is routed to, or null if it writes to the
+	 * default stream.
+	 */
+	public OutputStream getRoute() {
+		return target.get();
+	}
+
+	/**
+	 * Install routed print streams as System.out and System.err, unless they
+	 * already are.
+	 */
+	public static synchronized void install() {
+		if (!(System.out instanceof RoutedPrintStream)) {
+			System.setOut(new RoutedPrintStream(System.out));
+		}
+		if (!(System.err instanceof RoutedPrintStream)) {
+			System.setErr(new RoutedPrintStream(System.err));
+		}
+	}
+}
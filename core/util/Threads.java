@@ -0,0 +1,157 @@
+package core.util;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates threads for running scripts, using virtual threads when the Java
+ * runtime has them and platform threads otherwise. Virtual threads are looked
+ * up by reflection, so that the code still compiles and runs on Java 17.
+ */
+public class Threads {
+	private static final ThreadFactory virtualThreads = findVirtualThreadFactory();
+	private static long stackSize = 0;
+	private static ExecutorService branches = null;
+
+	private Threads() {
+	}
+
+	private static ThreadFactory findVirtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null; // Virtual threads are not available
+		}
+	}
+
+	/**
+	 * Check if scripts are run on virtual threads.
+	 */
+	public static boolean isVirtual() {
+		return virtualThreads != null;
+	}
+
+	/**
+	 * Get a factory of virtual threads, or of daemon platform threads if virtual
+	 * threads are not available.
+	 */
+	public static ThreadFactory factory() {
+		if (virtualThreads != null) {
+			return virtualThreads;
+		}
+		return platformThreads(getStackSize());
+	}
+
+	private static ThreadFactory platformThreads(long stackSize) {
+		return runnable -> {
+			Thread thread = new Thread(null, runnable, "rsc", stackSize);
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	/**
+	 * Set the stack size of the platform threads started for scripts. The default
+	 * of 0 gives them the stack size set with -Xss, like the main thread.
+	 *
+	 * @param bytes The stack size in bytes, or 0 for the default.
+	 */
+	public static synchronized void setStackSize(long bytes) {
+		if (bytes != stackSize && branches != null) {
+			branches.shutdown(); // Threads are started again with the new size
+			branches = null;
+		}
+		stackSize = bytes;
+	}
+
+	public static synchronized long getStackSize() {
+		return stackSize;
+	}
+
+	/**
+	 * Get the executor running the branches of par blocks. The branches run on
+	 * platform threads with the stack size of the main thread, so that they
+	 * recurse as deep as the code evaluating the block, and never on virtual
+	 * threads, whose stacks are limited. Threads are reused between blocks, and
+	 * there is no limit on their number, since branches wait for nested blocks.
+	 */
+	public static synchronized ExecutorService branchExecutor() {
+		if (branches == null) {
+			branches = Executors.newCachedThreadPool(platformThreads(stackSize));
+		}
+		return branches;
+	}
+
+	/**
+	 * Create an executor running every task on a new thread from the factory.
+	 * Platform threads are reused between tasks, since they are costly to start.
+	 */
+	public static ExecutorService newExecutor() {
+		if (virtualThreads != null) {
+			try {
+				return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+						.invoke(null, virtualThreads);
+			} catch (ReflectiveOperationException e) {
+				// Fall back to platform threads
+			}
+		}
+		return Executors.newCachedThreadPool(factory());
+	}
+
+	/**
+	 * Wrap a task so that it writes to and reads from the streams the current
+	 * thread is routed to, on whichever thread it runs. New threads inherit the
+	 * routes of the thread starting them, but threads of a pool do not.
+	 *
+	 * @param task The task to run.
+	 * @return The wrapped task.
+	 */
+	public static Runnable withRoutes(Runnable task) {
+		RoutedPrintStream out = System.out instanceof RoutedPrintStream ? (RoutedPrintStream) System.out : null;
+		RoutedPrintStream err = System.err instanceof RoutedPrintStream ? (RoutedPrintStream) System.err : null;
+		RoutedInputStream in = System.in instanceof RoutedInputStream ? (RoutedInputStream) System.in : null;
+		OutputStream outRoute = out != null ? out.getRoute() : null;
+		OutputStream errRoute = err != null ? err.getRoute() : null;
+		InputStream inRoute = in != null ? in.getRoute() : null;
+		return () -> {
+			OutputStream outerOut = out != null ? out.getRoute() : null;
+			OutputStream outerErr = err != null ? err.getRoute() : null;
+			InputStream outerIn = in != null ? in.getRoute() : null;
+			route(out, err, in, outRoute, errRoute, inRoute);
+			try {
+				task.run();
+			} finally {
+				route(out, err, in, outerOut, outerErr, outerIn);
+			}
+		};
+	}
+
+	private static void route(RoutedPrintStream out, RoutedPrintStream err, RoutedInputStream in,
+			OutputStream outRoute, OutputStream errRoute, InputStream inRoute) {
+		if (out != null) {
+			out.route(outRoute);
+		}
+		if (err != null) {
+			err.route(errRoute);
+		}
+		if (in != null) {
+			in.route(inRoute);
+		}
+	}
+
+	/**
+	 * Start a task on a new thread from the factory.
+	 *
+	 * @param task The task to run.
+	 * @return The started thread.
+	 */
+	public static Thread start(Runnable task) {
+		Thread thread = factory().newThread(task);
+		thread.start();
+		return thread;
+	}
+}
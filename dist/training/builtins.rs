@@ -0,0 +1,17 @@
+// Training script for the class data sharing archive: the built-ins and language features
+imp square from "lib/math.rs"
+imp cube from "lib/math.rs"
+let nums = [1..10]
+println(sum(fmap(fn (n) => square(n), nums)), product([1, 2, 3]))
+println(sum(filter(fn (n) => n % 2 == 0, reverse(nums))))
+println(fold(fn (a, b) => a + b, 0, range(0, 5)), cube(3))
+let total = loop (acc = 0, i = 0) while i < 100 => { let acc = acc + i; let i = i + 1 }
+println(total)
+let name = upper("rust") + lower("SCRIPT")
+println(substr(name, 0, 4), typeof(name), str(1.5))
+println(round(1.5), floor(1.5), ceil(1.5))
+println(parseInt("42"), parseBool("true"), has(1))
+let describe = fn (n) => match n
+	| x and x > 5 then "big"
+	| _ then "small"
+println(describe(10), if (total > 10) then ("yes") else ("no"))
@@ -0,0 +1,2 @@
+// Training script for the class data sharing archive: the smallest program
+println("Hello, World!")
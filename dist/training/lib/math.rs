@@ -0,0 +1,2 @@
+pub let square = fn (n) => n * n
+pub let cube = fn (n) => n * square(n)
@@ -0,0 +1,32 @@
+#!/bin/sh
+# Compare the cold startup time of the RustScript CLI with and without its
+# class data sharing archive. Run build.sh first.
+#
+# Usage: ./startup_bench.sh [runs]
+cd "$(dirname "$0")"
+runs="${1:-10}"
+jar="dist/bin/rsc.jar"
+archive="dist/bin/rsc.jsa"
+if [ ! -f "$jar" ] || [ ! -f "$archive" ]; then
+	echo "Missing $jar or $archive, run build.sh first."
+	exit 1
+fi
+
+# Print the average wall time in milliseconds of running a command $runs times
+measure() {
+	start=$(date +%s%N)
+	i=0
+	while [ $i -lt "$runs" ]; do
+		"$@" > /dev/null 2>&1
+		i=$((i + 1))
+	done
+	end=$(date +%s%N)
+	echo $(((end - start) / runs / 1000000))
+}
+
+printf "%-16s %12s %12s\n" "Command" "No archive" "Archive"
+for command in "-v" "dist/training/hello.rs"; do
+	without=$(measure java -jar "$jar" $command)
+	with=$(measure java -XX:SharedArchiveFile="$archive" -jar "$jar" $command)
+	printf "%-16s %9s ms %9s ms\n" "rsc $(basename -- "$command")" "$without" "$with"
+done